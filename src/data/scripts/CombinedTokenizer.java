@@ -0,0 +1,776 @@
+package data.scripts;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.log4j.Logger;
+
+// Tokenizes a log row with one combined scan per rule context instead of one full scan per grammar rule.
+// A context's rules (the grammar's top-level patterns, or the nested patterns of an open begin/end rule) are joined
+// into a single ordered alternation with one named group per rule, so at each step the earliest match wins and ties
+// go to the rule listed first, which is how TextMate picks between rules.
+// Begin/end rules push onto a rule stack that carries across the lines of a row, so constructs spanning several
+// lines of one event (stack traces, JSON dumps) stay in scope. Every row starts from the root state: rows are highlighted in parallel and out of order, and trimming never
+// invalidates the rows that remain.
+// Rules whose regexes use back-references can't be renumbered into a combined pattern; they keep their own
+// matcher and compete with the combined one by start position.
+// Before any regex runs, a LiteralPrefilter pass over the row finds which rules' required literals are present;
+// each context then scans with a combined pattern over just those rules, cached per set of active rules.
+// Matching runs over an InterruptibleCharSequence with a budget per row and per find(). A row that runs out is
+// left unstyled from that point; a rule that keeps running out is quarantined and no longer scanned.
+public class CombinedTokenizer {
+    private static final Logger log = Logger.getLogger(CombinedTokenizer.class);
+
+    // Distinct active-rule subsets compiled per context; rows with an unseen subset past this use the full pattern
+    private static final int MAX_SUBSETS = 256;
+    // Rule budgets allowed for finding which rule made a combined pattern overrun
+    private static final int BLAME_BUDGETS = 2;
+
+    private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\(?:[1-9]|k<)");
+    private static final Pattern END_BACK_REFERENCE = Pattern.compile("\\\\([1-9])");
+    private static final Pattern NEVER = Pattern.compile("(?!)");
+
+    public static class Rule {
+        public final int index;
+        public final String scope;
+        // Scope of the text between begin and end (contentName), falling back to scope
+        public final String contentScope;
+        final Pattern pattern;
+        final String endSource;
+        final Pattern endPattern;
+        final boolean useGroup;
+        final boolean applyEndPatternLast;
+        final int groupCount;
+        // At least one of these occurs in any row the (begin) pattern matches; null if the rule always has to run
+        final String[] literals;
+        int[] literalIds;
+        final AtomicInteger overruns = new AtomicInteger();
+        volatile boolean quarantined;
+        // Tokens this rule produced, and end-pattern searches while its begin/end context was open
+        final LongAdder matches = new LongAdder();
+        final LongAdder endFinds = new LongAdder();
+        // Nested patterns of a begin/end rule with includes resolved; set after construction because grammars recurse
+        List<Rule> children = Collections.emptyList();
+        private volatile Scanner scanner;
+
+        // A match rule
+        public Rule(int index, String scope, Pattern pattern, boolean useGroup) {
+            this(index, scope, null, pattern, null, useGroup, false);
+        }
+
+        // A begin/end rule; an end regex with back-references is compiled per begin match
+        public Rule(int index, String scope, String contentScope, Pattern begin, String endSource,
+                    boolean useGroup, boolean applyEndPatternLast) {
+            this.index = index;
+            this.scope = scope != null ? scope : "";
+            this.contentScope = contentScope != null && !contentScope.isEmpty() ? contentScope : this.scope;
+            this.pattern = begin;
+            this.endSource = endSource;
+            this.endPattern = endSource != null && !END_BACK_REFERENCE.matcher(endSource).find()
+                ? Pattern.compile(endSource)
+                : null;
+            this.useGroup = useGroup;
+            this.applyEndPatternLast = applyEndPatternLast;
+            this.groupCount = begin.matcher("").groupCount();
+            this.literals = LiteralPrefilter.requiredLiterals(begin.pattern());
+        }
+
+        public boolean isRange() {
+            return endSource != null;
+        }
+
+        public void setChildren(List<Rule> children) {
+            this.children = children;
+            this.scanner = null;
+        }
+
+        Scanner scanner() {
+            Scanner s = scanner;
+            if (s == null) {
+                s = new Scanner(children, true);
+                scanner = s;
+            }
+            return s;
+        }
+    }
+
+    public interface TokenSink {
+        // Return false to stop tokenizing the rest of the row
+        boolean token(int start, int length, String scope);
+    }
+
+    // One open begin/end rule; parent links form the rule stack. Immutable.
+    static final class RuleStack {
+        final RuleStack parent;
+        final Rule rule;
+        final Pattern end;
+
+        RuleStack(RuleStack parent, Rule rule, Pattern end) {
+            this.parent = parent;
+            this.rule = rule;
+            this.end = end;
+        }
+    }
+
+    // Combined alternation over the rules that may start in one context, plus the rules that must run alone
+    static final class Scanner {
+        final Pattern combined;
+        final Rule[] combinedRules;
+        // Group number of each combined rule's wrapping group, parallel to combinedRules
+        final int[] ruleGroups;
+        final Rule[] separateRules;
+        private final List<Rule> rules;
+        // Whether prefilter skips in this context count towards the per-rule report
+        private final boolean counted;
+        // The same rules minus the useGroup ones, for the unstyled parts of a useGroup match
+        private volatile Scanner gapScanner;
+        private final Map<RuleMask, Scanner> subsets = new ConcurrentHashMap<>();
+        // find() calls on this scanner and the chars their regions covered, for the grammar profiler
+        final LongAdder finds = new LongAdder();
+        final LongAdder charsScanned = new LongAdder();
+
+        Scanner(List<Rule> ruleList, boolean counted) {
+            this.rules = ruleList;
+            this.counted = counted;
+
+            List<Rule> inline = new ArrayList<>();
+            List<Rule> separate = new ArrayList<>();
+            for (Rule rule : ruleList) {
+                if (BACK_REFERENCE.matcher(rule.pattern.pattern()).find()) {
+                    separate.add(rule);
+                } else {
+                    inline.add(rule);
+                }
+            }
+
+            Pattern compiled = null;
+            int[] groups = new int[inline.size()];
+            if (!inline.isEmpty()) {
+                StringBuilder regex = new StringBuilder();
+                int group = 1;
+                for (int i = 0; i < inline.size(); i++) {
+                    Rule rule = inline.get(i);
+                    if (i > 0) regex.append('|');
+                    regex.append("(?<r").append(rule.index).append('>').append(rule.pattern.pattern()).append(')');
+                    groups[i] = group;
+                    group += 1 + rule.groupCount;
+                }
+
+                try {
+                    compiled = Pattern.compile(regex.toString());
+                } catch (PatternSyntaxException e) {
+                    log.warn("Could not combine grammar rules, scanning them one by one: " + e.getMessage());
+                    separate = new ArrayList<>(ruleList);
+                    inline.clear();
+                    groups = new int[0];
+                }
+            }
+
+            this.combined = compiled;
+            this.combinedRules = inline.toArray(new Rule[0]);
+            this.ruleGroups = groups;
+            this.separateRules = separate.toArray(new Rule[0]);
+        }
+
+        Scanner gaps() {
+            Scanner s = gapScanner;
+            if (s == null) {
+                List<Rule> gapRules = new ArrayList<>();
+                for (Rule rule : rules) {
+                    if (!rule.useGroup) gapRules.add(rule);
+                }
+                s = new Scanner(gapRules, false);
+                gapScanner = s;
+            }
+            return s;
+        }
+
+        // Scanner over the rules that can match in a row holding the given literals; this one if they all can
+        // A null present means no prefilter, so only quarantined rules are left out
+        Scanner select(BitSet present, CombinedTokenizer owner) {
+            long[] mask = new long[(rules.size() + 63) >>> 6];
+            int active = 0;
+            for (int i = 0; i < rules.size(); i++) {
+                Rule rule = rules.get(i);
+                if (rule.quarantined) continue;
+                if (present == null) {
+                    mask[i >>> 6] |= 1L << i;
+                    active++;
+                    continue;
+                }
+                boolean on = mayMatch(rule, present);
+                if (on) {
+                    mask[i >>> 6] |= 1L << i;
+                    active++;
+                }
+                if (counted && rule.literalIds != null) owner.recordPrefilter(rule, on);
+            }
+            if (active == rules.size()) return this;
+
+            RuleMask key = new RuleMask(mask);
+            Scanner subset = subsets.get(key);
+            if (subset == null) {
+                if (subsets.size() >= MAX_SUBSETS) return this;
+                List<Rule> activeRules = new ArrayList<>(active);
+                for (int i = 0; i < rules.size(); i++) {
+                    if ((mask[i >>> 6] & (1L << i)) != 0) activeRules.add(rules.get(i));
+                }
+                subset = new Scanner(activeRules, false);
+                Scanner raced = subsets.putIfAbsent(key, subset);
+                if (raced != null) subset = raced;
+            }
+            return subset;
+        }
+
+        boolean find(Cursor cursor, int from, int to, Found out) {
+            return cursor.active(this).scan(cursor, from, to, out);
+        }
+
+        private boolean scan(Cursor cursor, int from, int to, Found out) {
+            finds.increment();
+            charsScanned.add(to - from);
+            Matcher[] matchers = cursor.matchers(this);
+            out.rule = null;
+            out.start = Integer.MAX_VALUE;
+
+            if (combined != null) {
+                Matcher matcher = prepare(matchers[0], from, to);
+                boolean matched;
+                try {
+                    cursor.input.startStep(cursor.owner.ruleBudgetNanos);
+                    matched = matcher.find();
+                } catch (InterruptibleCharSequence.Timeout e) {
+                    throw new BudgetExceeded(e.step ? blame(cursor, from, to) : null, !e.step);
+                }
+                if (matched) {
+                    for (int i = 0; i < combinedRules.length; i++) {
+                        if (matcher.start(ruleGroups[i]) >= 0) {
+                            out.set(combinedRules[i], matcher, ruleGroups[i]);
+                            break;
+                        }
+                    }
+                }
+            }
+
+            for (int i = 0; i < separateRules.length; i++) {
+                Matcher candidate = prepare(matchers[i + 1], from, to);
+                try {
+                    cursor.input.startStep(cursor.owner.ruleBudgetNanos);
+                    if (!candidate.find()) continue;
+                } catch (InterruptibleCharSequence.Timeout e) {
+                    throw new BudgetExceeded(separateRules[i], !e.step);
+                }
+                int start = candidate.start();
+                if (start < out.start || (start == out.start && separateRules[i].index < out.rule.index)) {
+                    out.set(separateRules[i], candidate, 0);
+                }
+            }
+            return out.rule != null;
+        }
+
+        // The combined pattern ran out of time; rerun its rules one at a time to find the one responsible, the ones
+        // the profiler has seen cost the most first. The whole pass gets BLAME_BUDGETS rule budgets, so an overrun
+        // costs the row a bounded extra whatever the number of rules; if that runs out first, no rule is blamed.
+        private Rule blame(Cursor cursor, int from, int to) {
+            GrammarProfiler profiler = cursor.owner.profiler;
+            Rule[] order = combinedRules.clone();
+            Arrays.sort(order, Comparator.comparingDouble((Rule rule) -> profiler.meanNanos(rule)).reversed());
+
+            long ruleBudget = cursor.owner.ruleBudgetNanos;
+            InterruptibleCharSequence input = new InterruptibleCharSequence(cursor.text);
+            input.startJob(ruleBudget * BLAME_BUDGETS);
+            for (Rule rule : order) {
+                input.startStep(ruleBudget);
+                try {
+                    prepare(rule.pattern.matcher(input), from, to).find();
+                } catch (InterruptibleCharSequence.Timeout e) {
+                    return e.step ? rule : null;
+                }
+            }
+            return null;
+        }
+    }
+
+    // False only if the prefilter has ruled the rule out for a row with these literals
+    static boolean mayMatch(Rule rule, BitSet present) {
+        if (present == null || rule.literalIds == null) return true;
+        for (int id : rule.literalIds) {
+            if (present.get(id)) return true;
+        }
+        return false;
+    }
+
+    // Thrown out of a row that ran over budget; rule is the one that was running, if it could be told apart
+    private static final class BudgetExceeded extends RuntimeException {
+        final Rule rule;
+        final boolean wholeRow;
+
+        BudgetExceeded(Rule rule, boolean wholeRow) {
+            super(null, null, false, false);
+            this.rule = rule;
+            this.wholeRow = wholeRow;
+        }
+    }
+
+    static final class RuleMask {
+        private final long[] bits;
+        private final int hash;
+
+        RuleMask(long[] bits) {
+            this.bits = bits;
+            this.hash = Arrays.hashCode(bits);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof RuleMask && Arrays.equals(bits, ((RuleMask) o).bits);
+        }
+    }
+
+    static final class Found {
+        Rule rule;
+        Matcher matcher;
+        int group;
+        int start;
+        int end;
+
+        void set(Rule rule, Matcher matcher, int group) {
+            this.rule = rule;
+            this.matcher = matcher;
+            this.group = group;
+            this.start = matcher.start(group);
+            this.end = matcher.end(group);
+        }
+    }
+
+    // Matchers for one row, created on first use per scanner
+    static final class Cursor {
+        final String text;
+        final InterruptibleCharSequence input;
+        private final Map<Object, Matcher[]> matchers = new IdentityHashMap<>();
+        final CombinedTokenizer owner;
+        // Literal ids found in the row, or null with the prefilter off
+        private final BitSet present;
+        private final Map<Scanner, Scanner> active = new IdentityHashMap<>();
+
+        Cursor(String text, CombinedTokenizer owner, BitSet present) {
+            this.text = text;
+            this.input = new InterruptibleCharSequence(text);
+            this.owner = owner;
+            this.present = present;
+        }
+
+        Scanner active(Scanner scanner) {
+            if (present == null && owner.quarantinedRules.isEmpty()) return scanner;
+            Scanner s = active.get(scanner);
+            if (s == null) {
+                s = scanner.select(present, owner);
+                active.put(scanner, s);
+            }
+            return s;
+        }
+
+        Matcher[] matchers(Scanner scanner) {
+            Matcher[] m = matchers.get(scanner);
+            if (m == null) {
+                m = new Matcher[scanner.separateRules.length + 1];
+                if (scanner.combined != null) m[0] = scanner.combined.matcher(input);
+                for (int i = 0; i < scanner.separateRules.length; i++) {
+                    m[i + 1] = scanner.separateRules[i].pattern.matcher(input);
+                }
+                matchers.put(scanner, m);
+            }
+            return m;
+        }
+
+        Matcher end(Pattern pattern) {
+            Matcher[] m = matchers.get(pattern);
+            if (m == null) {
+                m = new Matcher[] {pattern.matcher(input)};
+                matchers.put(pattern, m);
+            }
+            return m[0];
+        }
+    }
+
+    private final Scanner root;
+
+    private final LiteralPrefilter prefilter;
+    private final List<Rule> allRules = new ArrayList<>();
+    // Indexed by Rule.index: rows a rule's context was scanned in, and how many of those skipped the rule
+    private final LongAdder[] prefilterChecks;
+    private final LongAdder[] prefilterSkips;
+
+    private volatile long rowBudgetNanos = 0;
+    private volatile long ruleBudgetNanos = 0;
+    private volatile int quarantineOverruns = 0;
+    private final LongAdder rowsTimed = new LongAdder();
+    private final LongAdder tokenizeNanos = new LongAdder();
+    private final AtomicLong slowestRowNanos = new AtomicLong();
+    private final LongAdder rowOverruns = new LongAdder();
+    private final LongAdder ruleOverruns = new LongAdder();
+    private final List<Rule> quarantinedRules = new CopyOnWriteArrayList<>();
+    private volatile String lastOffender;
+
+    private final GrammarProfiler profiler;
+
+    public CombinedTokenizer(List<Rule> rootRules) {
+        this.root = new Scanner(rootRules, true);
+
+        // Every rule reachable from the root, each literal given one id however many rules share it
+        Set<Rule> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Rule> queue = new ArrayDeque<>(rootRules);
+        Map<String, Integer> literalIds = new LinkedHashMap<>();
+        int maxIndex = 0;
+        while (!queue.isEmpty()) {
+            Rule rule = queue.poll();
+            if (!seen.add(rule)) continue;
+            allRules.add(rule);
+            maxIndex = Math.max(maxIndex, rule.index);
+            queue.addAll(rule.children);
+
+            if (rule.literals != null) {
+                int[] ids = new int[rule.literals.length];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = literalIds.computeIfAbsent(LiteralPrefilter.fold(rule.literals[i]), k -> literalIds.size());
+                }
+                rule.literalIds = ids;
+            }
+        }
+        this.prefilter = new LiteralPrefilter(new ArrayList<>(literalIds.keySet()));
+        this.profiler = new GrammarProfiler(this, allRules, maxIndex);
+        this.prefilterChecks = new LongAdder[maxIndex + 1];
+        this.prefilterSkips = new LongAdder[maxIndex + 1];
+        for (int i = 0; i <= maxIndex; i++) {
+            prefilterChecks[i] = new LongAdder();
+            prefilterSkips[i] = new LongAdder();
+        }
+
+        long filtered = allRules.stream().filter(r -> r.literalIds != null).count();
+        log.info("Combined " + root.combinedRules.length + " top-level grammar rules into one pattern, "
+            + root.separateRules.length + " scanned separately; " + filtered + " of " + allRules.size()
+            + " rules prefiltered on " + literalIds.size() + " literals");
+    }
+
+    // Milliseconds a row may spend in regexes and a single find() may take, and how many overruns get a rule
+    // quarantined; 0 turns each off
+    public void setBudget(int rowBudgetMs, int ruleBudgetMs, int quarantineOverruns) {
+        this.rowBudgetNanos = TimeUnit.MILLISECONDS.toNanos(rowBudgetMs);
+        this.ruleBudgetNanos = TimeUnit.MILLISECONDS.toNanos(ruleBudgetMs);
+        this.quarantineOverruns = quarantineOverruns;
+    }
+
+    private void recordOverrun(BudgetExceeded e) {
+        (e.wholeRow ? rowOverruns : ruleOverruns).increment();
+        Rule rule = e.rule;
+        if (rule == null) return;
+
+        int overruns = rule.overruns.incrementAndGet();
+        lastOffender = describeRule(rule) + (e.wholeRow ? " (row budget)" : " (rule budget)");
+        if (quarantineOverruns > 0 && overruns >= quarantineOverruns && !rule.quarantined) {
+            synchronized (quarantinedRules) {
+                if (rule.quarantined) return;
+                rule.quarantined = true;
+                quarantinedRules.add(rule);
+            }
+            log.warn("Grammar rule " + describeRule(rule) + " went over its regex budget " + overruns
+                + " times and will no longer be used for highlighting");
+        }
+    }
+
+    private static String describeRule(Rule rule) {
+        String regex = rule.pattern.pattern();
+        return (rule.scope.isEmpty() ? "(unscoped)" : rule.scope) + " /"
+            + (regex.length() > 80 ? regex.substring(0, 80) + "..." : regex) + "/";
+    }
+
+    public String budgetReport() {
+        long rows = rowsTimed.sum();
+        StringBuilder sb = new StringBuilder();
+        sb.append("row budget: ").append(rowBudgetNanos > 0 ? TimeUnit.NANOSECONDS.toMillis(rowBudgetNanos) + " ms" : "off")
+            .append("\nrule budget: ").append(ruleBudgetNanos > 0 ? TimeUnit.NANOSECONDS.toMillis(ruleBudgetNanos) + " ms" : "off")
+            .append("\nquarantine after: ").append(quarantineOverruns > 0 ? quarantineOverruns + " overruns" : "never")
+            .append("\ntime in tokenizer: ").append(TimeUnit.NANOSECONDS.toMillis(tokenizeNanos.sum())).append(" ms over ")
+            .append(rows).append(" rows")
+            .append(rows > 0 ? String.format(" (%.1f us/row)", tokenizeNanos.sum() / 1000.0 / rows) : "")
+            .append(String.format("\nslowest row: %.1f ms", slowestRowNanos.get() / 1_000_000.0))
+            .append("\nrows over row budget: ").append(rowOverruns.sum())
+            .append("\nfinds over rule budget: ").append(ruleOverruns.sum())
+            .append("\nlast offending rule: ").append(lastOffender != null ? lastOffender : "none");
+        sb.append("\nquarantined rules: ").append(quarantinedRules.isEmpty() ? "none" : "");
+        for (Rule rule : quarantinedRules) {
+            sb.append("\n  ").append(describeRule(rule)).append(", ").append(rule.overruns.get()).append(" overruns");
+        }
+        return sb.toString();
+    }
+
+    public GrammarProfiler getProfiler() {
+        return profiler;
+    }
+
+    // Finds each rule took part in and the chars they covered, summed over every scanner holding the rule
+    void collectScanCounts(long[] finds, long[] chars) {
+        Set<Scanner> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<Scanner> queue = new ArrayDeque<>();
+        queue.add(root);
+        for (Rule rule : allRules) {
+            Scanner s = rule.scanner;
+            if (s != null) queue.add(s);
+            finds[rule.index] += rule.endFinds.sum();
+        }
+        while (!queue.isEmpty()) {
+            Scanner scanner = queue.poll();
+            if (!seen.add(scanner)) continue;
+            long scannerFinds = scanner.finds.sum();
+            long scannerChars = scanner.charsScanned.sum();
+            for (Rule rule : scanner.rules) {
+                finds[rule.index] += scannerFinds;
+                chars[rule.index] += scannerChars;
+            }
+            queue.addAll(scanner.subsets.values());
+            Scanner gaps = scanner.gapScanner;
+            if (gaps != null) queue.add(gaps);
+        }
+    }
+
+    void recordPrefilter(Rule rule, boolean active) {
+        prefilterChecks[rule.index].increment();
+        if (!active) prefilterSkips[rule.index].increment();
+    }
+
+    // Per-rule skip rates, most often skipped first; rules with no required literal always run and are listed last
+    public String prefilterReport() {
+        List<Rule> filtered = new ArrayList<>();
+        List<Rule> unfiltered = new ArrayList<>();
+        for (Rule rule : allRules) {
+            (rule.literalIds != null ? filtered : unfiltered).add(rule);
+        }
+        filtered.sort((a, b) -> Double.compare(skipRate(b), skipRate(a)));
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(prefilter.getLiteralCount()).append(" distinct literals\n");
+        for (Rule rule : filtered) {
+            long checks = prefilterChecks[rule.index].sum();
+            sb.append(String.format("%5.1f%% skipped of %d  %s  %s%n", skipRate(rule) * 100, checks,
+                rule.scope.isEmpty() ? "(unscoped)" : rule.scope, describeLiterals(rule.literals)));
+        }
+        for (Rule rule : unfiltered) {
+            sb.append("always runs  ").append(rule.scope.isEmpty() ? "(unscoped)" : rule.scope).append('\n');
+        }
+        return sb.toString().trim();
+    }
+
+    private double skipRate(Rule rule) {
+        long checks = prefilterChecks[rule.index].sum();
+        return checks == 0 ? 0 : (double) prefilterSkips[rule.index].sum() / checks;
+    }
+
+    private static String describeLiterals(String[] literals) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < literals.length && i < 6; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append('"').append(literals[i].replace("\n", "\\n").replace("\t", "\\t")).append('"');
+        }
+        if (literals.length > 6) sb.append(", +").append(literals.length - 6);
+        return sb.append(']').toString();
+    }
+
+    public static int lineCount(String text) {
+        int lines = 0;
+        for (int i = text.indexOf('\n'); i >= 0; i = text.indexOf('\n', i + 1)) {
+            lines++;
+        }
+        return text.isEmpty() || text.charAt(text.length() - 1) != '\n' ? lines + 1 : lines;
+    }
+
+    // Tokenizes one row from the root state, stopping early if the sink asks to
+    public void tokenize(String text, TokenSink sink) {
+        BitSet present = prefilter.scan(text);
+        tokenize(new Cursor(text, this, present), sink);
+        if (profiler.shouldSample()) profiler.sample(text, present, ruleBudgetNanos);
+    }
+
+    // Every rule scanned on every row, for measuring what the prefilter saves
+    public void tokenizeUnfiltered(String text, TokenSink sink) {
+        tokenize(new Cursor(text, this, null), sink);
+    }
+
+    private void tokenize(Cursor cursor, TokenSink sink) {
+        long started = System.nanoTime();
+        cursor.input.startJob(rowBudgetNanos);
+        try {
+            tokenizeRow(cursor, sink);
+        } catch (BudgetExceeded e) {
+            // The rest of the row stays unstyled
+            recordOverrun(e);
+        } finally {
+            long elapsed = System.nanoTime() - started;
+            rowsTimed.increment();
+            tokenizeNanos.add(elapsed);
+            slowestRowNanos.accumulateAndGet(elapsed, Math::max);
+        }
+    }
+
+    private void tokenizeRow(Cursor cursor, TokenSink sink) {
+        int length = cursor.text.length();
+        Found found = new Found();
+
+        RuleStack stack = null;
+        int pos = 0;
+        int fillFrom = 0;
+
+        while (true) {
+            Scanner scanner = stack == null ? root : stack.rule.scanner();
+            boolean childFound = pos < length && scanner.find(cursor, pos, length, found);
+
+            int endStart = -1, endEnd = -1;
+            if (stack != null && pos < length) {
+                Matcher endMatcher = prepare(cursor.end(stack.end), pos, length);
+                boolean matched;
+                stack.rule.endFinds.increment();
+                try {
+                    cursor.input.startStep(ruleBudgetNanos);
+                    matched = endMatcher.find();
+                } catch (InterruptibleCharSequence.Timeout e) {
+                    throw new BudgetExceeded(stack.rule, !e.step);
+                }
+                if (matched) {
+                    endStart = endMatcher.start();
+                    endEnd = endMatcher.end();
+                }
+            }
+
+            boolean endWins = endStart >= 0 && (!childFound || endStart < found.start
+                || (endStart == found.start && !stack.rule.applyEndPatternLast));
+
+            if (!endWins && !childFound) {
+                if (!fill(sink, stack, fillFrom, length)) return;
+                break;
+            }
+
+            int tokenEnd;
+            if (endWins) {
+                if (!fill(sink, stack, fillFrom, endStart)) return;
+                if (endEnd > endStart && !emit(sink, endStart, endEnd, stack.rule.scope)) return;
+                stack = stack.parent;
+                tokenEnd = endEnd;
+                pos = endEnd;
+
+            } else {
+                Rule rule = found.rule;
+                int start = found.start;
+                tokenEnd = found.end;
+                rule.matches.increment();
+
+                if (tokenEnd == start && !rule.isRange()) {
+                    // Empty match: nothing to style, just move past it
+                    pos = start + 1;
+                    continue;
+                }
+
+                if (!fill(sink, stack, fillFrom, start)) return;
+
+                if (rule.isRange()) {
+                    if (tokenEnd == start) {
+                        // An empty begin would push forever at the same spot
+                        pos = start + 1;
+                        continue;
+                    }
+                    if (!emit(sink, start, tokenEnd, rule.scope)) return;
+                    stack = new RuleStack(stack, rule, resolveEnd(rule, found.matcher, found.group));
+
+                } else if (rule.useGroup && rule.groupCount >= 1 && found.matcher.start(found.group + 1) >= 0) {
+                    // Only the first capture is styled; the rest of the match is still open to other rules
+                    int groupStart = found.matcher.start(found.group + 1);
+                    int groupEnd = found.matcher.end(found.group + 1);
+                    if (!scanGaps(cursor, scanner.gaps(), start, groupStart, stack, sink)) return;
+                    if (!emit(sink, groupStart, groupEnd, rule.scope)) return;
+                    if (!scanGaps(cursor, scanner.gaps(), groupEnd, tokenEnd, stack, sink)) return;
+
+                } else {
+                    if (!emit(sink, start, tokenEnd, rule.scope)) return;
+                }
+                pos = tokenEnd;
+            }
+            fillFrom = Math.max(fillFrom, tokenEnd);
+        }
+    }
+
+    // Match rules only, for the parts of a useGroup match outside its styled capture
+    private boolean scanGaps(Cursor cursor, Scanner gaps, int from, int to, RuleStack stack, TokenSink sink) {
+        Found found = new Found();
+        int pos = from;
+        int fillFrom = from;
+        while (pos < to && gaps.find(cursor, pos, to, found)) {
+            if (found.end > found.start) {
+                found.rule.matches.increment();
+                if (!fill(sink, stack, fillFrom, found.start)) return false;
+                if (!emit(sink, found.start, found.end, found.rule.scope)) return false;
+                fillFrom = found.end;
+            }
+            pos = Math.max(found.end, found.start + 1);
+        }
+        return fill(sink, stack, fillFrom, to);
+    }
+
+    private static boolean fill(TokenSink sink, RuleStack stack, int from, int to) {
+        if (stack == null || to <= from) return true;
+        return emit(sink, from, to, stack.rule.contentScope);
+    }
+
+    private static boolean emit(TokenSink sink, int start, int end, String scope) {
+        if (end <= start || scope.isEmpty()) return true;
+        return sink.token(start, end - start, scope);
+    }
+
+    private static Pattern resolveEnd(Rule rule, Matcher begin, int group) {
+        if (rule.endPattern != null) return rule.endPattern;
+
+        Matcher ref = END_BACK_REFERENCE.matcher(rule.endSource);
+        StringBuilder end = new StringBuilder();
+        while (ref.find()) {
+            int index = Integer.parseInt(ref.group(1));
+            String captured = index <= rule.groupCount ? begin.group(group + index) : null;
+            ref.appendReplacement(end, Matcher.quoteReplacement(captured != null ? Pattern.quote(captured) : ""));
+        }
+        ref.appendTail(end);
+
+        try {
+            return Pattern.compile(end.toString());
+        } catch (PatternSyntaxException e) {
+            log.warn("Invalid end pattern for " + rule.scope + ": " + e.getMessage());
+            return NEVER;
+        }
+    }
+
+    private static Matcher prepare(Matcher matcher, int from, int to) {
+        matcher.region(from, to);
+        matcher.useTransparentBounds(true);
+        matcher.useAnchoringBounds(false);
+        return matcher;
+    }
+}
@@ -0,0 +1,343 @@
+package data.scripts;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import data.scripts.TextMateGrammar.StyleInfo;
+
+// The log grammar and theme compiled once per game session and shared by every console window and highlight thread.
+// Everything here is built in the constructor and never modified afterwards; the only mutable parts are the
+// tokenizer's pattern caches, quarantine and counters, which are all safe to share between threads.
+public final class CompiledGrammar {
+    private static final Logger log = Logger.getLogger(CompiledGrammar.class);
+
+    private static final String GRAMMAR_RESOURCE = "data/scripts/log.tmLanguage.json";
+    private static final String THEME_RESOURCE = "data/scripts/dark_vs.json";
+
+    private static class Holder {
+        static final CompiledGrammar INSTANCE = new CompiledGrammar();
+    }
+
+    public static CompiledGrammar shared() {
+        return Holder.INSTANCE;
+    }
+
+    // One top-level or nested pattern in grammar order, as the legacy per-rule tokenizer scans them
+    public static final class LegacyRule {
+        public final Pattern pattern;
+        public final Pattern endPattern;
+        public final String scope;
+        public final boolean useGroup;
+
+        LegacyRule(Pattern pattern, Pattern endPattern, String scope, boolean useGroup) {
+            this.pattern = pattern;
+            this.endPattern = endPattern;
+            this.scope = scope;
+            this.useGroup = useGroup;
+        }
+
+        public boolean isRange() {
+            return endPattern != null;
+        }
+    }
+
+    private final Map<String, StyleInfo> scopeToStyle;
+    private final Map<String, StyleInfo> resolvedStyles;
+    private final List<LegacyRule> legacyRules;
+    private final Set<String> scopes;
+    private final CombinedTokenizer tokenizer;
+
+    private CompiledGrammar() {
+        JSONObject grammar = loadJson(GRAMMAR_RESOURCE);
+        JSONObject theme = loadJson(THEME_RESOURCE);
+
+        this.scopeToStyle = Collections.unmodifiableMap(buildScopeMap(theme));
+
+        Map<String, Pattern> patternMap = new HashMap<>();
+        List<LegacyRule> legacy = new ArrayList<>();
+        CombinedTokenizer combined = null;
+        if (grammar != null) {
+            try {
+                JSONArray topLevel = grammar.getJSONArray("patterns");
+                collectLegacyRules(topLevel, patternMap, legacy);
+                combined = new CombinedTokenizer(new RuleTreeBuilder(grammar).build(topLevel));
+                combined.setBudget(ExternalConsoleSettings.getRegexRowBudgetMs(),
+                    ExternalConsoleSettings.getRegexRuleBudgetMs(), ExternalConsoleSettings.getRegexQuarantineOverruns());
+                combined.getProfiler().setSampleRate(ExternalConsoleSettings.getProfileSampleRate());
+            } catch (JSONException e) {
+                log.error("Error compiling grammar: " + e.getMessage(), e);
+            }
+        }
+        this.legacyRules = Collections.unmodifiableList(legacy);
+        this.tokenizer = combined;
+
+        Set<String> scopeNames = new LinkedHashSet<>();
+        for (LegacyRule rule : legacy) {
+            scopeNames.add(rule.scope);
+        }
+        this.scopes = Collections.unmodifiableSet(scopeNames);
+
+        Map<String, StyleInfo> resolved = new HashMap<>();
+        for (String scope : scopeNames) {
+            StyleInfo style = resolveStyle(scope);
+            if (style != null) resolved.put(scope, style);
+        }
+        this.resolvedStyles = Collections.unmodifiableMap(resolved);
+
+        log.info("Compiled log grammar: " + legacy.size() + " rules, " + scopeToStyle.size() + " theme scopes");
+    }
+
+    private static JSONObject loadJson(String resource) {
+        try (InputStream is = CompiledGrammar.class.getClassLoader().getResourceAsStream(resource)) {
+            if (is == null) {
+                log.error("Could not load " + resource + " from classpath");
+                return null;
+            }
+            return new JSONObject(new String(is.readAllBytes(), StandardCharsets.UTF_8));
+        } catch (Exception e) {
+            log.error("Error loading " + resource + ": " + e.getMessage(), e);
+            return null;
+        }
+    }
+
+    private static Map<String, StyleInfo> buildScopeMap(JSONObject theme) {
+        Map<String, StyleInfo> map = new HashMap<>();
+        if (theme == null) return map;
+
+        try {
+            JSONArray tokenColors = theme.getJSONArray("tokenColors");
+            for (int i = 0; i < tokenColors.length(); i++) {
+                JSONObject tokenColor = tokenColors.getJSONObject(i);
+                JSONObject settings = tokenColor.getJSONObject("settings");
+
+                StyleInfo styleInfo = new StyleInfo(
+                    settings.optString("foreground", null),
+                    settings.optString("background", null),
+                    settings.optString("fontStyle", null));
+
+                Object scopeObj = tokenColor.opt("scope");
+                if (scopeObj instanceof String) {
+                    map.put((String) scopeObj, styleInfo);
+                } else if (scopeObj instanceof JSONArray) {
+                    JSONArray scopeArray = (JSONArray) scopeObj;
+                    for (int j = 0; j < scopeArray.length(); j++) {
+                        map.put(scopeArray.getString(j), styleInfo);
+                    }
+                }
+            }
+        } catch (JSONException e) {
+            log.error("Error building scope map: " + e.getMessage(), e);
+        }
+        return map;
+    }
+
+    private static void collectLegacyRules(JSONArray patterns, Map<String, Pattern> patternMap, List<LegacyRule> out) {
+        for (int i = 0; i < patterns.length(); i++) {
+            try {
+                JSONObject pattern = patterns.getJSONObject(i);
+                String scope = pattern.optString("name", "");
+                boolean useGroup = pattern.optBoolean("useGroup", false);
+
+                if (pattern.has("match")) {
+                    Pattern match = compile(pattern.getString("match"), patternMap);
+                    if (match != null) out.add(new LegacyRule(match, null, scope, useGroup));
+                }
+
+                if (pattern.has("begin") && pattern.has("end")) {
+                    Pattern begin = compile(pattern.getString("begin"), patternMap);
+                    Pattern end = compile(pattern.getString("end"), patternMap);
+                    if (begin != null && end != null) out.add(new LegacyRule(begin, end, scope, useGroup));
+                }
+
+                if (pattern.has("patterns")) {
+                    collectLegacyRules(pattern.getJSONArray("patterns"), patternMap, out);
+                }
+            } catch (JSONException e) {
+                log.warn("Pattern parsing error at index " + i + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static Pattern compile(String regex, Map<String, Pattern> patternMap) {
+        String cleaned = cleanRegexPattern(regex);
+        if (patternMap.containsKey(cleaned)) return patternMap.get(cleaned);
+
+        Pattern pattern = null;
+        try {
+            pattern = Pattern.compile(cleaned);
+        } catch (PatternSyntaxException e) {
+            log.warn("Invalid regex: " + cleaned, e);
+        }
+        patternMap.put(cleaned, pattern);
+        return pattern;
+    }
+
+    static String cleanRegexPattern(String pattern) {
+        if (pattern == null) return "";
+
+        String cleaned = pattern;
+        cleaned = cleaned.replaceAll("\\\\p(?![\\w{])", "\\\\p{L}");
+        cleaned = cleaned.replaceAll("\\\\p\\{\\}", "\\\\p{L}");
+
+        return cleaned;
+    }
+
+    // Theme entry for a grammar scope: an exact match, else the first comma-separated part that matches exactly
+    // or by substring either way
+    private StyleInfo resolveStyle(String scope) {
+        if (scope == null || scope.isEmpty()) return null;
+
+        StyleInfo styleInfo = scopeToStyle.get(scope);
+        if (styleInfo != null) return styleInfo;
+
+        for (String scopePart : scope.split(",\\s*")) {
+            scopePart = scopePart.trim();
+
+            styleInfo = scopeToStyle.get(scopePart);
+            if (styleInfo != null) return styleInfo;
+
+            for (Map.Entry<String, StyleInfo> entry : scopeToStyle.entrySet()) {
+                if (scopePart.contains(entry.getKey()) || entry.getKey().contains(scopePart)) {
+                    return entry.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    // Precomputed for every grammar scope; anything else is resolved on the spot without being cached
+    public StyleInfo getResolvedStyle(String scope) {
+        StyleInfo styleInfo = resolvedStyles.get(scope);
+        return styleInfo != null || scopes.contains(scope) ? styleInfo : resolveStyle(scope);
+    }
+
+    public CombinedTokenizer getTokenizer() {
+        return tokenizer;
+    }
+
+    public List<LegacyRule> getLegacyRules() {
+        return legacyRules;
+    }
+
+    public Set<String> getScopes() {
+        return scopes;
+    }
+
+    public Map<String, StyleInfo> getScopeToStyle() {
+        return scopeToStyle;
+    }
+
+    // Resolves includes and nesting into the tokenizer's rule tree; begin/end rules get their nested patterns as children.
+    // Only used while constructing, so it needs no synchronization.
+    private static final class RuleTreeBuilder {
+        private final JSONObject grammar;
+        // Keyed by JSON object, so includes and recursive grammars share one Rule per definition
+        private final Map<JSONObject, CombinedTokenizer.Rule> compiledRules = new IdentityHashMap<>();
+        private final Deque<Object[]> pendingChildren = new ArrayDeque<>();
+        private int nextRuleIndex = 0;
+
+        RuleTreeBuilder(JSONObject grammar) {
+            this.grammar = grammar;
+        }
+
+        List<CombinedTokenizer.Rule> build(JSONArray topLevel) {
+            List<CombinedTokenizer.Rule> rootRules = expandPatterns(topLevel, Collections.newSetFromMap(new IdentityHashMap<>()));
+            while (!pendingChildren.isEmpty()) {
+                Object[] pending = pendingChildren.poll();
+                CombinedTokenizer.Rule rule = (CombinedTokenizer.Rule) pending[0];
+                rule.setChildren(expandPatterns((JSONArray) pending[1], Collections.newSetFromMap(new IdentityHashMap<>())));
+            }
+            return rootRules;
+        }
+
+        private List<CombinedTokenizer.Rule> expandPatterns(JSONArray patterns, Set<JSONObject> expanding) {
+            Set<CombinedTokenizer.Rule> rules = Collections.newSetFromMap(new IdentityHashMap<>());
+            List<CombinedTokenizer.Rule> ordered = new ArrayList<>();
+            for (int i = 0; i < patterns.length(); i++) {
+                JSONObject pattern = patterns.optJSONObject(i);
+                if (pattern == null) continue;
+                for (CombinedTokenizer.Rule rule : expandPattern(pattern, expanding)) {
+                    if (rules.add(rule)) ordered.add(rule);
+                }
+            }
+            return ordered;
+        }
+
+        private List<CombinedTokenizer.Rule> expandPattern(JSONObject pattern, Set<JSONObject> expanding) {
+            if (pattern.has("include")) {
+                pattern = resolveInclude(pattern.optString("include", ""));
+                if (pattern == null) return Collections.emptyList();
+            }
+
+            if (pattern.has("match") || (pattern.has("begin") && pattern.has("end"))) {
+                CombinedTokenizer.Rule rule = compileRule(pattern);
+                return rule != null ? Collections.singletonList(rule) : Collections.emptyList();
+            }
+
+            // A bare group of patterns; a group that includes itself contributes nothing the second time round
+            JSONArray nested = pattern.optJSONArray("patterns");
+            if (nested == null || !expanding.add(pattern)) return Collections.emptyList();
+            try {
+                return expandPatterns(nested, expanding);
+            } finally {
+                expanding.remove(pattern);
+            }
+        }
+
+        private JSONObject resolveInclude(String include) {
+            if (include.equals("$self") || include.equals("$base")) return grammar;
+            if (include.startsWith("#")) {
+                JSONObject repository = grammar.optJSONObject("repository");
+                return repository != null ? repository.optJSONObject(include.substring(1)) : null;
+            }
+            // Other grammars aren't loaded
+            return null;
+        }
+
+        private CombinedTokenizer.Rule compileRule(JSONObject pattern) {
+            if (compiledRules.containsKey(pattern)) return compiledRules.get(pattern);
+
+            CombinedTokenizer.Rule rule = null;
+            try {
+                String name = pattern.optString("name", "");
+                boolean useGroup = pattern.optBoolean("useGroup", false);
+                if (pattern.has("match")) {
+                    rule = new CombinedTokenizer.Rule(nextRuleIndex++, name,
+                        Pattern.compile(cleanRegexPattern(pattern.getString("match"))), useGroup);
+                } else {
+                    rule = new CombinedTokenizer.Rule(nextRuleIndex++, name, pattern.optString("contentName", null),
+                        Pattern.compile(cleanRegexPattern(pattern.getString("begin"))),
+                        cleanRegexPattern(pattern.getString("end")), useGroup,
+                        pattern.optBoolean("applyEndPatternLast", false) || pattern.optInt("applyEndPatternLast", 0) == 1);
+                    JSONArray nested = pattern.optJSONArray("patterns");
+                    if (nested != null) {
+                        pendingChildren.add(new Object[] {rule, nested});
+                    }
+                }
+            } catch (PatternSyntaxException e) {
+                log.warn("Skipping grammar rule with invalid regex: " + e.getMessage());
+            } catch (JSONException e) {
+                log.warn("Skipping malformed grammar rule: " + e.getMessage());
+            }
+            compiledRules.put(pattern, rule);
+            return rule;
+        }
+    }
+}
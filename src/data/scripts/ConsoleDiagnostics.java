@@ -0,0 +1,33 @@
+package data.scripts;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+// Collects the console's own runtime statistics so they can be dumped from the menu or a command
+public class ConsoleDiagnostics {
+    private final Map<String, Supplier<String>> sections = new LinkedHashMap<>();
+
+    public synchronized void addSection(String name, Supplier<String> section) {
+        sections.put(name, section);
+    }
+
+    public synchronized void removeSection(String name) {
+        sections.remove(name);
+    }
+
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Supplier<String>> entry : sections.entrySet()) {
+            sb.append("== ").append(entry.getKey()).append(" ==\n");
+            try {
+                String body = entry.getValue().get();
+                sb.append(body);
+                if (!body.endsWith("\n")) sb.append('\n');
+            } catch (Exception e) {
+                sb.append("unavailable: ").append(e.getMessage()).append('\n');
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -1,33 +1,89 @@
 package data.scripts;
 
-import java.util.concurrent.ExecutorService;
-
 import org.apache.log4j.AppenderSkeleton;
 import org.apache.log4j.spi.LoggingEvent;
 
 public class CustomConsoleAppender extends AppenderSkeleton {
     protected final CustomConsoleWindow windowInstance;
-    protected final ExecutorService appendExecutor;
+    protected final LogEventRingBuffer eventBuffer;
+    private final SuppressionFilter suppression;
+    private final Thread drainThread;
+
+    private static final int DRAIN_BATCH_SIZE = 1024;
+    private static final long IDLE_PARK_NANOS = 5_000_000L;
 
     public CustomConsoleAppender(CustomConsoleWindow windowInstance) {
         this.windowInstance = windowInstance;
+        this.suppression = SuppressionFilter.fromSettings();
+        this.eventBuffer = new LogEventRingBuffer(
+            ExternalConsoleSettings.getBufferCapacity(),
+            ExternalConsoleSettings.getOverflowPolicy(),
+            ExternalConsoleSettings.getOverflowSampleRate()
+        );
+
+        this.drainThread = new Thread(this::drainLoop, "ExternalLogConsole-Drain");
+        this.drainThread.setDaemon(true);
+        this.eventBuffer.setConsumer(drainThread);
+        this.drainThread.start();
+
+        this.windowInstance.getDiagnostics().addSection("Ingestion buffer", this::bufferReport);
+        this.windowInstance.getDiagnostics().addSection("Suppression", suppression::report);
         this.windowInstance.init(this);
-        this.appendExecutor = windowInstance.getAppendExecutor();
     }
 
     @Override
     public void append(LoggingEvent event) {
-        if (event.getMessage().toString().startsWith("Cleaned buffer for texture")) return;
-        appendExecutor.submit(() -> {
-            windowInstance.appendText(event);
-        });
+        // On the logging thread, so dropped events never reach the queue
+        if (suppression.suppresses(event)) return;
+        eventBuffer.publish(event);
+    }
+
+    // Runs on the drain thread, the only consumer of eventBuffer
+    protected void deliver(LoggingEvent event) {
+        windowInstance.appendText(event);
+    }
+
+    private void drainLoop() {
+        LogEventRingBuffer.EventHandler handler = event -> {
+            try {
+                deliver(event);
+            } catch (Exception e) {
+                CustomConsoleWindow.log.error("Error delivering log event: " + e.getMessage(), e);
+            }
+        };
+
+        while (!eventBuffer.isClosed()) {
+            if (eventBuffer.drainTo(handler, DRAIN_BATCH_SIZE) == 0) {
+                eventBuffer.awaitEvents(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    public ExternalConsoleSettings.ColorMode colorMode() {
+        return ExternalConsoleSettings.ColorMode.SYNTAX;
+    }
+
+    public LogEventRingBuffer getEventBuffer() {
+        return eventBuffer;
+    }
+
+    private String bufferReport() {
+        return "policy: " + eventBuffer.getPolicy()
+            + "\ncapacity: " + eventBuffer.getCapacity()
+            + "\nqueued: " + eventBuffer.size()
+            + "\npublished: " + eventBuffer.getPublishedCount()
+            + "\ndropped: " + eventBuffer.getDroppedCount()
+            + "\nblocked publishes: " + eventBuffer.getBlockedCount();
     }
 
     @Override
-    public void close() {}
+    public void close() {
+        eventBuffer.close();
+    }
 
+    // Rows are formatted by the window's LogLineFormatter from the stored columns
     @Override
     public boolean requiresLayout() {
-        return true;
+        return false;
     }
 }
\ No newline at end of file
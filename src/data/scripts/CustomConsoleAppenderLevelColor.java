@@ -0,0 +1,22 @@
+package data.scripts;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+// Colors each line by its level when it is inserted, with no grammar and no regex: nearly the cost of
+// CustomConsoleAppenderNoColor, but WARN and ERROR lines still stand out
+public class CustomConsoleAppenderLevelColor extends CustomConsoleAppender {
+
+    public CustomConsoleAppenderLevelColor(CustomConsoleWindow windowInstance) {
+        super(windowInstance);
+    }
+
+    @Override
+    protected void deliver(LoggingEvent event) {
+        windowInstance.appendTextLevelColor(event);
+    }
+
+    @Override
+    public ExternalConsoleSettings.ColorMode colorMode() {
+        return ExternalConsoleSettings.ColorMode.LEVEL;
+    }
+}
@@ -9,10 +9,12 @@ public class CustomConsoleAppenderNoColor extends CustomConsoleAppender {
     }
 
     @Override
-    public void append(LoggingEvent event) {
-        if (event.getMessage().toString().startsWith("Cleaned buffer for texture")) return;
-        appendExecutor.submit(() -> {
-            windowInstance.appendTextNoHighlight(event);
-        });
+    protected void deliver(LoggingEvent event) {
+        windowInstance.appendTextNoHighlight(event);
+    }
+
+    @Override
+    public ExternalConsoleSettings.ColorMode colorMode() {
+        return ExternalConsoleSettings.ColorMode.NONE;
     }
 }
@@ -1,7 +1,6 @@
 package data.scripts;
 
 import org.apache.log4j.Logger;
-import org.apache.log4j.PatternLayout;
 
 import java.awt.Color;
 import java.awt.Component;
@@ -12,11 +11,14 @@ import java.awt.Toolkit;
 
 import javax.swing.*;
 import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument;
 import javax.swing.text.Style;
 import javax.swing.text.StyleConstants;
+import javax.swing.text.StyleContext;
 import javax.swing.text.StyledDocument;
 import javax.swing.text.Document;
 import javax.swing.JViewport;
+import javax.swing.Timer;
 
 import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
@@ -31,8 +33,12 @@ import java.awt.event.WindowEvent;
 import java.util.*;
 import org.apache.log4j.spi.LoggingEvent;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.PatternSyntaxException;
 
 public class CustomConsoleWindow extends JFrame {
     public static final Logger log = Logger.getLogger(CustomConsoleWindow.class);
@@ -51,46 +57,179 @@ public class CustomConsoleWindow extends JFrame {
     protected JTextField inputField = null;
     protected int textFontSize = 14;
     protected JScrollPane scrollPane;
+    // Set when the virtual viewer is enabled; textPane then only holds the styles
+    protected LogViewport logViewport;
     protected JDialog searchDialog;
     
     private StyledDocument doc;
+    private final StyleContext styleContext = new StyleContext();
     private JTextField searchField;
     private int currentMatchIndex = 0;
-    private List<Integer> matchPositions = new ArrayList<>();
+    // Search hits, painted by searchHighlighter or the virtual viewer; the document itself is never restyled
+    private final SearchMatches matchPositions = new SearchMatches();
+    private SearchHighlighter searchHighlighter;
     private JLabel matchCounterLabel;
     private Style highlightStyle;
     private JCheckBox caseSensitiveCheckBox;
-
-    private Style infoStyle, warnStyle, errorStyle, defaultStyle;
-
-    private final ExecutorService syntaxHighlightExecutor = Executors.newFixedThreadPool(4);
+    private JCheckBox wholeWordCheckBox;
+    private JCheckBox regexCheckBox;
+
+    // Filter bar over the virtual viewer; null with the text pane
+    private JComboBox<String> filterLevelBox;
+    private JTextField filterCategoryField, filterThreadField, filterTextField;
+    private JLabel filterCountLabel;
+    // Restarted on every keystroke so the filter is applied once typing pauses
+    private Timer filterTimer;
+    private int filterApplications = 0;
+    private long lastFilterNanos = 0;
+
+    private Style debugStyle, infoStyle, warnStyle, errorStyle, defaultStyle;
+    // Line style for each LogEventStore level code in level color mode
+    private Style[] levelStyles;
+    private final boolean levelColorTokens = ExternalConsoleSettings.isLevelColorTokens();
+
+    private HighlightScheduler highlighter;
+    private Timer highlightTimer;
+    // Bumped whenever the document is cleared, rebuilt or torn down; segments and highlight jobs from an older
+    // epoch refer to text that is gone and are dropped instead of styling whatever now sits at their offsets
+    private final AtomicInteger documentEpoch = new AtomicInteger();
     private final ExecutorService statusExecutor = Executors.newSingleThreadExecutor();
-    private final ExecutorService appendExecutor = Executors.newSingleThreadExecutor();
 
-    public ExecutorService getAppendExecutor() {
-        return this.appendExecutor;
+    private final ConsoleDiagnostics diagnostics = new ConsoleDiagnostics();
+
+    public ConsoleDiagnostics getDiagnostics() {
+        return this.diagnostics;
     }
 
+    private static final int[] NO_SPANS = new int[0];
+
+    // A row is its prefix columns (up to and including the "- ") followed by the body. Nothing here depends on the
+    // column layout: positions come from the row number (LogEventStore.rowPosition) and the prefix's length and runs
+    // from rowPrefix, so toggling a column leaves every segment alone except for the text pane's documentStart.
     public static class TextSegment {
-        int start;
-        int length;
+        // Row number, Chunk.firstRow + index
+        final int row;
+        // Text pane only: logical position of the row in the document, whose offset is documentStart - documentBase.
+        // Rewritten on the EDT when the document is rebuilt; the virtual viewer never reads it.
+        long documentStart;
+        // Line style; anything not covered by a span is drawn in it
         Style style;
-        Map<Integer, Style> syntaxHighlights;
+        // Grammar-highlighted rows also style their prefix columns; level-colored and plain rows don't
+        boolean prefixStyled;
+        // documentEpoch when the segment was committed
+        final int epoch;
+        // Highlighted runs of the body as (offset, length, styleId) triples relative to the body's first character,
+        // sorted by offset and non-overlapping
+        volatile int[] spans = NO_SPANS;
+        // Where the row is in HighlightScheduler's pipeline
+        volatile byte highlight = HIGHLIGHT_NONE;
+
+        static final byte HIGHLIGHT_NONE = 0;
+        static final byte HIGHLIGHT_PENDING = 1;
+        static final byte HIGHLIGHT_QUEUED = 2;
+        static final byte HIGHLIGHT_DONE = 3;
+        // Spans are computed but the document was rebuilt without them
+        static final byte HIGHLIGHT_UNAPPLIED = 4;
     
-        TextSegment(int start, int length, Style style) {
-            this.start = start;
-            this.length = length;
+        TextSegment(int row, long documentStart, Style style, int epoch) {
+            this.row = row;
+            this.documentStart = documentStart;
             this.style = style;
-            this.syntaxHighlights = new HashMap<>();
+            this.epoch = epoch;
+        }
+
+        public void setSpans(int[] spans) {
+            this.spans = spans;
+        }
+
+        // Prefix and body runs together, relative to the row's first character, in the same triple layout as spans
+        int[] displaySpans(int prefixLength, int[] prefixSpans) {
+            int[] body = spans;
+            if (body.length == 0) return prefixSpans;
+
+            int[] runs = Arrays.copyOf(prefixSpans, prefixSpans.length + body.length);
+            for (int i = 0; i < body.length; i += 3) {
+                runs[prefixSpans.length + i] = body[i] + prefixLength;
+                runs[prefixSpans.length + i + 1] = body[i + 1];
+                runs[prefixSpans.length + i + 2] = body[i + 2];
+            }
+            return runs;
         }
     }
-    
-    private final List<TextSegment> segments = new ArrayList<>();
-    private Map<Integer, Style> searchHighlights = new HashMap<>();
 
-    // private final int MAX_LOG_ENTRIES = 33000;
-    // private final int MAX_LINES = 33000;
-    private List<LoggingEvent> logEvents = new ArrayList<>();
+    // Styles handed out to highlight spans, addressed by the ids stored in TextSegment.spans.
+    // Keyed by style name, since every "Syntax_" style for a scope carries the same attributes.
+    private final List<Style> styleTable = new ArrayList<>();
+    private final Map<String, Integer> styleIds = new HashMap<>();
+
+    public int getStyleId(Style style) {
+        String name = style.getName() != null ? style.getName() : "Anonymous_" + System.identityHashCode(style);
+        synchronized (styleTable) {
+            Integer id = styleIds.get(name);
+            if (id == null) {
+                id = styleTable.size();
+                styleTable.add(style);
+                styleIds.put(name, id);
+            }
+            return id;
+        }
+    }
+
+    public Style getStyleById(int id) {
+        synchronized (styleTable) {
+            return styleTable.get(id);
+        }
+    }
+
+    // A grammar scope's resolved style and its id in styleTable; never modified once cached
+    public static final class ScopeStyle {
+        public final Style style;
+        public final int id;
+
+        ScopeStyle(Style style, int id) {
+            this.style = style;
+            this.id = id;
+        }
+    }
+
+    // Filled for every grammar scope when the window is built, so highlight threads only ever read it
+    private final Map<String, ScopeStyle> scopeStyles = new ConcurrentHashMap<>();
+
+    public ScopeStyle getScopeStyle(String scope) {
+        if (scope == null) scope = "";
+        ScopeStyle cached = scopeStyles.get(scope);
+        if (cached != null) return cached;
+
+        return scopeStyles.computeIfAbsent(scope, s -> {
+            Style style = createStyleFromScope(s);
+            return new ScopeStyle(style, getStyleId(style));
+        });
+    }
+    
+    private final LogEventStore logStore = new LogEventStore();
+    private final StoreSearch storeSearch = new StoreSearch(logStore);
+    // True while storeSearch is still streaming hits in for the current query
+    private boolean searchRunning = false;
+    // Set by Find: select the first hit as soon as it arrives, or report that there is none
+    private boolean selectFirstMatch = false;
+    // Query and options of the hits shown, or null while there is no search
+    private String searchQuery = null;
+    private boolean searchCaseSensitive;
+    private boolean searchWholeWord;
+    private boolean searchRegex;
+    // After a restart: the hit the counter was on, to go back to once the new hits reach it, or -1
+    private int restoreMatchIndex = -1;
+    private final int maxRetainedLines = ExternalConsoleSettings.getRetainedLines();
+    private final long maxRetainedBytes = ExternalConsoleSettings.getRetainedBytes();
+    // Once over a limit, the text pane trims to 1/TRIM_SLACK below it, so each document remove covers many chunks
+    private static final int TRIM_SLACK = 8;
+    private long trimPasses = 0;
+
+    // Document position (TextSegment.documentStart coordinates) of text pane offset 0; trimming and clearing advance it
+    // instead of rewriting documentStart
+    private volatile long documentBase = 0;
+    // Document position just past the last committed line
+    private long documentEnd = 0;
 
     private volatile boolean wasAtBottom = true;
     private volatile boolean scrollToBottomPending = false;
@@ -114,11 +253,30 @@ public class CustomConsoleWindow extends JFrame {
         textPane.setFont(new Font("Consolas", Font.PLAIN, textFontSize));
         textPane.setBorder(BorderFactory.createEmptyBorder(2, 5, 2, 5));
 
+        // Styles live in a context of our own so a document rebuilt after a column toggle can share them
+        textPane.setStyledDocument(new DefaultStyledDocument(styleContext));
         doc = textPane.getStyledDocument();
         defineStyles(doc);
         defineHighlightStyle();
+        if (grammar != null) {
+            for (String scope : grammar.getScopes()) {
+                getScopeStyle(scope);
+            }
+        }
 
-        scrollPane = new JScrollPane(textPane);
+        if (ExternalConsoleSettings.isVirtualViewer()) {
+            logViewport = new LogViewport(this, logStore, textPane.getFont());
+            logViewport.setBackground(textPane.getBackground());
+            logViewport.setForeground(Color.WHITE);
+            logViewport.setSearchColor(StyleConstants.getBackground(highlightStyle));
+            logViewport.setSearchMatches(matchPositions);
+            scrollPane = new JScrollPane(logViewport);
+        } else {
+            searchHighlighter = new SearchHighlighter(this, matchPositions);
+            searchHighlighter.setColor(StyleConstants.getBackground(highlightStyle));
+            textPane.setHighlighter(searchHighlighter);
+            scrollPane = new JScrollPane(textPane);
+        }
         scrollPane.getViewport().setBackground(Color.BLACK);
         
         scrollPane.getVerticalScrollBar().setUI(new javax.swing.plaf.basic.BasicScrollBarUI() {
@@ -174,16 +332,47 @@ public class CustomConsoleWindow extends JFrame {
         });
 
         add(scrollPane);
+        if (logViewport != null) {
+            setupFilterBar(darkBackground);
+        }
+
+        highlighter = new HighlightScheduler(this, logStore, grammar, ExternalConsoleSettings.getHighlightIdleRate());
 
         scrollPane.getVerticalScrollBar().addAdjustmentListener(e -> {
             JScrollBar scrollBar = (JScrollBar) e.getSource();
             synchronized (scrollLock) {
                 wasAtBottom = scrollBar.getValue() + scrollBar.getVisibleAmount() >= scrollBar.getMaximum() - 20;
             }
+            highlighter.schedule();
         });
         
         setupSearchDialog();
         setupKeyBindings();
+
+        commitTimer = new Timer(ExternalConsoleSettings.getCommitIntervalMs(), e -> {
+            commitPending();
+            applyHighlightedSegments();
+        });
+        commitTimer.setCoalesce(true);
+        commitTimer.start();
+        // Keeps idle highlighting going between commits
+        highlightTimer = new Timer(100, e -> highlighter.schedule());
+        highlightTimer.start();
+        diagnostics.addSection("Document commits", this::commitReport);
+        diagnostics.addSection("Highlighting", highlighter::report);
+        if (grammar != null) {
+            diagnostics.addSection("Tokenizer", grammar::tokenizerReport);
+            diagnostics.addSection("Literal prefilter", grammar::prefilterReport);
+            diagnostics.addSection("Regex budget", grammar::budgetReport);
+        }
+        diagnostics.addSection("Retention", () -> "max lines: " + maxRetainedLines
+            + "\nmax bytes: " + maxRetainedBytes
+            + "\ntrim passes: " + trimPasses
+            + "\n" + logStore.report());
+        diagnostics.addSection("Search", storeSearch::report);
+        if (logViewport != null) {
+            diagnostics.addSection("Filter", this::filterReport);
+        }
     }
 
     public CustomConsoleWindow preInit() {
@@ -248,7 +437,6 @@ public class CustomConsoleWindow extends JFrame {
 
     public void init(CustomConsoleAppender appender) {
         this.appender = appender;
-        setPatternLayout();
         Logger.getRootLogger().addAppender(appender);
     }
 
@@ -256,6 +444,9 @@ public class CustomConsoleWindow extends JFrame {
         defaultStyle = doc.addStyle("Default", null);
         StyleConstants.setForeground(defaultStyle, Color.WHITE);
 
+        debugStyle = doc.addStyle("Debug", null);
+        StyleConstants.setForeground(debugStyle, Color.GRAY);
+
         infoStyle = doc.addStyle("Info", null);
         StyleConstants.setForeground(infoStyle, Color.LIGHT_GRAY);
 
@@ -264,6 +455,8 @@ public class CustomConsoleWindow extends JFrame {
 
         errorStyle = doc.addStyle("Error", null);
         StyleConstants.setForeground(errorStyle, Color.RED);
+
+        levelStyles = new Style[] {debugStyle, infoStyle, warnStyle, errorStyle, errorStyle};
     }
 
     private void defineHighlightStyle() {
@@ -288,43 +481,332 @@ public class CustomConsoleWindow extends JFrame {
         return doc;
     }
 
-    public void appendText(String text) {
+    // The component showing the log: the virtual viewer if enabled, otherwise the text pane
+    public JComponent getLogView() {
+        return logViewport != null ? logViewport : textPane;
+    }
+
+    // Text queued by the drain thread since the last commit tick, flushed to the document on the EDT
+    private static class PendingBatch {
+        final StringBuilder text = new StringBuilder();
+        LogEventStore.Chunk[] chunks = new LogEventStore.Chunk[256];
+        int[] rows = new int[256];
+        int[] lengths = new int[256];
+        ExternalConsoleSettings.ColorMode[] colors = new ExternalConsoleSettings.ColorMode[256];
+        int count = 0;
+
+        // Formats the stored row straight onto the end of text
+        void add(LogEventStore.Chunk chunk, int row, LogLineFormatter formatter, ExternalConsoleSettings.ColorMode color) {
+            if (count == lengths.length) {
+                chunks = Arrays.copyOf(chunks, count * 2);
+                rows = Arrays.copyOf(rows, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+                colors = Arrays.copyOf(colors, count * 2);
+            }
+            int before = text.length();
+            formatter.format(chunk, row, text);
+            chunks[count] = chunk;
+            rows[count] = row;
+            lengths[count] = text.length() - before;
+            colors[count] = color;
+            count++;
+        }
+
+        void clear() {
+            text.setLength(0);
+            Arrays.fill(chunks, 0, count, null);
+            count = 0;
+        }
+    }
+
+    private final Object pendingLock = new Object();
+    private PendingBatch pendingBatch = new PendingBatch();
+    private PendingBatch committingBatch = new PendingBatch();
+    private Timer commitTimer;
+
+    private long commitCount = 0;
+    private long committedLines = 0;
+    private long commitNanos = 0;
+    private int largestBatch = 0;
+
+    // Runs on the EDT once per tick: one insert, one scroll check and one round of segment bookkeeping per batch
+    private void commitPending() {
+        PendingBatch batch;
+        synchronized (pendingLock) {
+            if (pendingBatch.count == 0) return;
+            batch = pendingBatch;
+            pendingBatch = committingBatch;
+            committingBatch = batch;
+        }
+
+        long startTime = System.nanoTime();
         try {
-            Document doc = textPane.getDocument();
-            JScrollBar verticalScrollBar = ((JScrollPane) textPane.getParent().getParent()).getVerticalScrollBar();
-            
+            JScrollBar verticalScrollBar = scrollPane.getVerticalScrollBar();
             synchronized (scrollLock) {
                 wasAtBottom = verticalScrollBar.getValue() + verticalScrollBar.getVisibleAmount() >= verticalScrollBar.getMaximum() - 20;
             }
 
-            // int lineCount = getLineCount();
-            // if (lineCount >= MAX_LINES) {
-            //     removeExcessLines(lineCount - MAX_LINES + 1);
-            // }
-    
-            int start = doc.getLength();
-            doc.insertString(start, text, defaultStyle);
-            
-            TextSegment segment = new TextSegment(start, text.length(), defaultStyle);
-            segments.add(segment);
+            long start = documentEnd;
+            int epoch = documentEpoch.get();
+            for (int i = 0; i < batch.count; i++) {
+                LogEventStore.Chunk chunk = batch.chunks[i];
+                int row = batch.rows[i];
+                TextSegment segment = new TextSegment(chunk.firstRow + row, start, defaultStyle, epoch);
+                switch (batch.colors[i]) {
+                    case SYNTAX:
+                        segment.prefixStyled = true;
+                        segment.highlight = TextSegment.HIGHLIGHT_PENDING;
+                        break;
+                    case LEVEL:
+                        segment.style = levelStyles[chunk.getLevel(row)];
+                        if (levelColorTokens) {
+                            colorLevelTokens(chunk, row, segment);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                chunk.setSegment(row, segment);
+                start += batch.lengths[i];
+            }
+            documentEnd = start;
+
+            if (logViewport == null) {
+                insertBatch(batch);
+            }
+
+            trimRetention();
+            if (logViewport != null) {
+                logViewport.rowsCommitted();
+                updateFilterCount();
+            }
+            // Rows stay plain until they are in or near the view, or idle time gets to them
+            highlighter.schedule();
 
             if (wasAtBottom) {
                 scheduleScrollToBottom();
             }
-            
-            applySyntaxHighlightingAsync(text, start, segment);
-
         } catch (BadLocationException e) {
             log.error(e);
+        } finally {
+            commitCount++;
+            committedLines += batch.count;
+            commitNanos += System.nanoTime() - startTime;
+            largestBatch = Math.max(largestBatch, batch.count);
+            batch.clear();
+        }
+    }
+
+    // One insert per run of consecutive rows sharing a line style, so a batch without level colors is a single insert
+    private void insertBatch(PendingBatch batch) throws BadLocationException {
+        int runStart = 0;
+        int offset = 0;
+        Style runStyle = null;
+        for (int i = 0; i < batch.count; i++) {
+            Style style = batch.chunks[i].getSegment(batch.rows[i]).style;
+            if (style != runStyle && offset > runStart) {
+                doc.insertString(doc.getLength(), batch.text.substring(runStart, offset), runStyle);
+                runStart = offset;
+            }
+            runStyle = style;
+            offset += batch.lengths[i];
+        }
+        if (offset > runStart) {
+            doc.insertString(doc.getLength(), batch.text.substring(runStart, offset), runStyle);
+        }
+    }
+
+    // Words colored on top of the line's level color, found with indexOf and grown to the whole identifier
+    private static final String[] LEVEL_ERROR_TOKENS = {"Exception", "Error", "ERROR", "FATAL", "Caused by"};
+    private static final String[] LEVEL_WARN_TOKENS = {"WARN", "Warning"};
+
+    // Level mode's only per-row scan: a few plain substring searches over the body, no regex
+    private void colorLevelTokens(LogEventStore.Chunk chunk, int row, TextSegment segment) {
+        String body = chunk.getBody(row);
+        TextMateGrammar.SpanBuilder spans = null;
+        for (int pass = 0; pass < 2; pass++) {
+            String[] tokens = pass == 0 ? LEVEL_ERROR_TOKENS : LEVEL_WARN_TOKENS;
+            int styleId = -1;
+            for (String token : tokens) {
+                for (int at = body.indexOf(token); at >= 0; at = body.indexOf(token, at + token.length())) {
+                    int from = at;
+                    int to = at + token.length();
+                    while (from > 0 && isIdentifierChar(body.charAt(from - 1))) from--;
+                    while (to < body.length() && isIdentifierChar(body.charAt(to))) to++;
+                    if (spans == null) spans = new TextMateGrammar.SpanBuilder();
+                    if (styleId < 0) styleId = getStyleId(pass == 0 ? errorStyle : warnStyle);
+                    spans.add(from, to - from, styleId);
+                }
+            }
+        }
+        if (spans == null) return;
+
+        // Tokens inside the same word grow to the same run; keep the first of any that overlap
+        int[] sorted = spans.toSortedSpans();
+        int kept = 0;
+        int end = 0;
+        for (int i = 0; i < sorted.length; i += 3) {
+            if (sorted[i] < end) continue;
+            System.arraycopy(sorted, i, sorted, kept, 3);
+            end = sorted[i] + sorted[i + 1];
+            kept += 3;
+        }
+        segment.setSpans(Arrays.copyOf(sorted, kept));
+        segment.highlight = TextSegment.HIGHLIGHT_DONE;
+        segmentHighlighted(segment);
+    }
+
+    private static boolean isIdentifierChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '$';
+    }
+
+    // Drops whole chunks from the head of the store and of the text pane document, moving documentBase instead of the
+    // rows left behind. Unlinking a chunk from the store is O(1), but a text pane remove costs time in proportion to
+    // the whole document, so the text pane trims down to TRIM_SLACK below the limits in one remove instead of one
+    // remove per chunk.
+    private void trimRetention() throws BadLocationException {
+        LogEventStore.Chunk chunk = logStore.trimHead(maxRetainedLines, maxRetainedBytes);
+        if (chunk == null) return;
+
+        int lowLines = maxRetainedLines;
+        long lowBytes = maxRetainedBytes;
+        if (logViewport == null) {
+            lowLines -= maxRetainedLines / TRIM_SLACK;
+            lowBytes -= maxRetainedBytes / TRIM_SLACK;
+        }
+        long removeEnd = documentBase;
+        do {
+            // The virtual viewer reads rows straight from the store, so there is no document to cut
+            if (logViewport == null) {
+                int last = chunk.size() - 1;
+                removeEnd = Math.max(removeEnd, chunk.getSegment(last).documentStart + rowLength(chunk, last));
+            }
+        } while ((chunk = logStore.trimHead(lowLines, lowBytes)) != null);
+        trimPasses++;
+
+        int removeLength = toDocumentOffset(removeEnd);
+        if (removeLength <= 0) return;
+        doc.remove(0, Math.min(removeLength, doc.getLength()));
+        documentBase += removeLength;
+    }
+
+    // Document offset of a logical document position (TextSegment.documentStart coordinates), negative if that text
+    // has been trimmed or cleared
+    private int toDocumentOffset(long documentPosition) {
+        long offset = documentPosition - documentBase;
+        return offset < 0 ? -1 : (int) offset;
+    }
+
+    // Text pane document offset of a row position (see LogEventStore.rowPosition), or -1 if the row is gone; EDT only
+    public int documentOffsetOf(long position) {
+        int row = LogEventStore.positionRow(position);
+        LogEventStore.Chunk chunk = LogEventStore.chunkForRow(logStore.snapshot(), row);
+        TextSegment segment = chunk != null ? chunk.getSegment(row - chunk.firstRow) : null;
+        if (segment == null) return -1;
+        int offset = toDocumentOffset(segment.documentStart);
+        return offset < 0 ? -1 : offset + LogEventStore.positionOffset(position);
+    }
+
+    // Row position at a text pane document offset, or -1 if no retained row is there; EDT only
+    public long positionAtOffset(int offset) {
+        long documentPosition = documentBase + offset;
+        int row = logStore.findRow(documentPosition);
+        if (row < 0) return -1;
+        LogEventStore.Chunk chunk = LogEventStore.chunkForRow(logStore.snapshot(), row);
+        if (chunk == null) return -1;
+        return LogEventStore.rowPosition(row) + (documentPosition - chunk.getSegment(row - chunk.firstRow).documentStart);
+    }
+
+    public int getDocumentEpoch() {
+        return documentEpoch.get();
+    }
+
+    // Marks every segment and queued highlight job so far as stale and drops the jobs that haven't started
+    private void advanceDocumentEpoch() {
+        documentEpoch.incrementAndGet();
+        if (highlighter != null) {
+            highlighter.cancelStale();
+        }
+    }
+
+    // Segments whose spans the highlight threads have finished, waiting for the EDT to apply them
+    private final ConcurrentLinkedQueue<TextSegment> highlightedSegments = new ConcurrentLinkedQueue<>();
+    private final List<TextSegment> highlightBatch = new ArrayList<>();
+    private long highlightBatches = 0;
+    private long highlightRunsApplied = 0;
+    private long staleHighlightsDropped = 0;
+
+    // Called from the highlight threads once a line's spans are final; the document itself is only touched on the EDT
+    public void segmentHighlighted(TextSegment segment) {
+        highlightedSegments.add(segment);
+    }
+
+    // Runs on the EDT each commit tick, after the inserts: the only place syntax styles are written to the document.
+    // Segments are applied in document order, and any from an older epoch or already trimmed away are dropped.
+    private void applyHighlightedSegments() {
+        TextSegment segment;
+        while ((segment = highlightedSegments.poll()) != null) {
+            highlightBatch.add(segment);
+        }
+        if (highlightBatch.isEmpty()) return;
+
+        try {
+            highlightBatch.sort(Comparator.comparingInt(s -> s.row));
+            LogEventStore.Chunk[] snapshot = logStore.snapshot();
+            int epoch = documentEpoch.get();
+            for (TextSegment highlighted : highlightBatch) {
+                LogEventStore.Chunk chunk = LogEventStore.chunkForRow(snapshot, highlighted.row);
+                int start = toDocumentOffset(highlighted.documentStart);
+                if (highlighted.epoch != epoch || chunk == null || start < 0) {
+                    staleHighlightsDropped++;
+                    continue;
+                }
+                // The virtual viewer paints straight from the spans
+                if (logViewport != null) continue;
+
+                int index = highlighted.row - chunk.firstRow;
+                int[] runs = displaySpans(chunk, index, highlighted);
+                int end = Math.min(start + rowLength(chunk, index), doc.getLength());
+                for (int i = 0; i < runs.length; i += 3) {
+                    if (start + runs[i] + runs[i + 1] > end) break;
+                    doc.setCharacterAttributes(start + runs[i], runs[i + 1], getStyleById(runs[i + 2]), true);
+                    highlightRunsApplied++;
+                }
+            }
+            highlightBatches++;
+            if (logViewport != null) {
+                logViewport.repaint();
+            }
+        } finally {
+            highlightBatch.clear();
         }
     }
 
+    private String commitReport() {
+        double perThousand = committedLines == 0 ? 0 : (commitNanos / 1_000_000.0) * 1000.0 / committedLines;
+        return "interval: " + commitTimer.getDelay() + " ms"
+            + "\ncommits: " + commitCount
+            + "\nlines committed: " + committedLines
+            + "\nlargest batch: " + largestBatch
+            + "\nEDT time: " + String.format("%.1f", commitNanos / 1_000_000.0) + " ms"
+            + "\nEDT time per 1000 lines: " + String.format("%.2f", perThousand) + " ms"
+            + "\ncolumn toggles: " + columnToggles
+            + "\nlast column toggle: " + String.format("%.1f", lastToggleNanos / 1_000_000.0) + " ms"
+            + "\nhighlight batches applied: " + highlightBatches
+            + "\nhighlight runs applied: " + highlightRunsApplied
+            + "\nstale highlight results dropped: " + staleHighlightsDropped;
+    }
+
     private void scheduleScrollToBottom() {
         synchronized (scrollLock) {
             if (!scrollToBottomPending) {
                 scrollToBottomPending = true;
                 SwingUtilities.invokeLater(() -> {
                     try {
+                        if (logViewport != null) {
+                            logViewport.scrollToBottom();
+                            return;
+                        }
                         Document doc = textPane.getDocument();
                         textPane.setCaretPosition(doc.getLength());
                         
@@ -354,123 +836,55 @@ public class CustomConsoleWindow extends JFrame {
         scheduleScrollToBottom();
     }
 
-    // this isnt worth the overhead
-    private void removeOldestLogEvent() {
-        LoggingEvent removedEvent = logEvents.remove(0);
-        String removedMessage = this.appender.getLayout().format(removedEvent);
-        try {
-            Document doc = textPane.getDocument();
-            int messageLength = removedMessage.length();
-            doc.remove(0, messageLength);
-            segments.removeIf(segment -> segment.start + segment.length <= messageLength);
-            for (TextSegment segment : segments) {
-                segment.start -= messageLength;
-            }
-            Map<Integer, Style> newSearchHighlights = new HashMap<>();
-            for (Map.Entry<Integer, Style> entry : searchHighlights.entrySet()) {
-                int position = entry.getKey();
-                if (position >= messageLength) {
-                    newSearchHighlights.put(position - messageLength, entry.getValue());
-                }
-            }
-            searchHighlights = newSearchHighlights;
-            for (int i = 0; i < matchPositions.size(); i++) {
-                int position = matchPositions.get(i);
-                if (position >= messageLength) {
-                    matchPositions.set(i, position - messageLength);
-                } else {
-                    matchPositions.remove(i);
-                    i--;
-                }
-            }
-            
-        } catch (BadLocationException e) {
-            log.error("Error removing old log event: " + e.getMessage(), e);
-        }
-    }
-
+    // The row is formatted under pendingLock so a column toggle can't slip in between formatting and queueing it
     public void appendText(LoggingEvent event) {
-        // if (logEvents.size() >= MAX_LOG_ENTRIES) {
-        //     removeOldestLogEvent();
-        // }
-        
-        logEvents.add(event);
-
-        String message = this.appender.getLayout().format(event);
-
-        appendText(message);
-
-        if (event.getThrowableInformation() != null) {
-            String stackTrace = "";
-            for (String str : event.getThrowableInformation().getThrowableStrRep()) {
-                stackTrace += str + "\n";
-            }
-            appendText(stackTrace);
-        }
+        append(event, ExternalConsoleSettings.ColorMode.SYNTAX);
     }
 
     public void appendTextNoHighlight(LoggingEvent event) {
-        // if (logEvents.size() >= MAX_LOG_ENTRIES) {
-        //     removeOldestLogEvent();
-        // }
-        
-        logEvents.add(event);
-
-        String message = this.appender.getLayout().format(event);
+        append(event, ExternalConsoleSettings.ColorMode.NONE);
+    }
 
-        appendTextNoHighlight(message);
+    public void appendTextLevelColor(LoggingEvent event) {
+        append(event, ExternalConsoleSettings.ColorMode.LEVEL);
+    }
 
-        if (event.getThrowableInformation() != null) {
-            String stackTrace = "";
-            for (String str : event.getThrowableInformation().getThrowableStrRep()) {
-                stackTrace += str + "\n";
-            }
-            appendTextNoHighlight(stackTrace);
+    // The store copies the message and stack trace in once; the displayed row is formatted from there
+    private void append(LoggingEvent event, ExternalConsoleSettings.ColorMode color) {
+        synchronized (pendingLock) {
+            LogEventStore.Chunk chunk = logStore.append(event);
+            pendingBatch.add(chunk, chunk.size() - 1, formatter, color);
         }
     }
 
-    private void applySyntaxHighlightingAsync(String text, int startOffset, TextSegment segment) {
-        syntaxHighlightExecutor.submit(() -> {
-            grammar.parseLine(text, this, segment, startOffset);
-        });
+    // Row numbers of the first and last rows on screen, or null; EDT only
+    int[] visibleRowRange() {
+        if (logViewport != null) {
+            return logViewport.visibleRows();
+        }
+        java.awt.Rectangle view = scrollPane.getViewport().getViewRect();
+        if (view.height <= 0 || doc.getLength() == 0) return null;
+        int top = textPane.viewToModel2D(new java.awt.Point(view.x, view.y));
+        int bottom = textPane.viewToModel2D(new java.awt.Point(view.x + view.width, view.y + view.height));
+        if (top < 0 || bottom < 0) return null;
+        int first = logStore.findRow(documentBase + top);
+        int last = logStore.findRow(documentBase + Math.min(bottom, doc.getLength() - 1));
+        if (first < 0 || last < 0) return null;
+        return new int[] {first, Math.max(first, last)};
     }
+
     
     protected Style createStyleFromScope(String scope) {
         if (grammar == null || scope == null || scope.isEmpty()) {
             return defaultStyle;
         }
         
-        TextMateGrammar.StyleInfo styleInfo = grammar.getStyleForScope(scope);
-        if (styleInfo == null) {
-            String[] scopeParts = scope.split(",\\s*");
-            
-            for (String scopePart : scopeParts) {
-                scopePart = scopePart.trim();
-                
-                styleInfo = grammar.getStyleForScope(scopePart);
-                if (styleInfo != null) {
-                    break;
-                }
-                
-                for (Map.Entry<String, TextMateGrammar.StyleInfo> entry : 
-                     grammar.getScopeToStyle().entrySet()) {
-                    if (scopePart.contains(entry.getKey()) || entry.getKey().contains(scopePart)) {
-                        styleInfo = entry.getValue();
-                        break;
-                    }
-                }
-                
-                if (styleInfo != null) {
-                    break;
-                }
-            }
-        }
-        
+        TextMateGrammar.StyleInfo styleInfo = grammar.getResolvedStyle(scope);
         if (styleInfo == null) {
             return defaultStyle;
         }
         
-        Style style = doc.addStyle("Syntax_" + scope.hashCode(), null);
+        Style style = doc.addStyle("Syntax_" + scope, null);
         
         if (styleInfo.foreground != null) {
             java.awt.Color color = TextMateGrammar.hexToColor(styleInfo.foreground);
@@ -541,11 +955,23 @@ public class CustomConsoleWindow extends JFrame {
         caseSensitiveCheckBox = new JCheckBox("Case Sensitive");
         caseSensitiveCheckBox.setBackground(darkBackground);
         caseSensitiveCheckBox.setForeground(darkForeground);
+        wholeWordCheckBox = new JCheckBox("Whole Word");
+        wholeWordCheckBox.setBackground(darkBackground);
+        wholeWordCheckBox.setForeground(darkForeground);
+        regexCheckBox = new JCheckBox("Regex");
+        regexCheckBox.setBackground(darkBackground);
+        regexCheckBox.setForeground(darkForeground);
+
+        JPanel optionsPanel = new JPanel(new java.awt.FlowLayout(java.awt.FlowLayout.LEFT, 0, 0));
+        optionsPanel.setBackground(darkBackground);
+        optionsPanel.add(caseSensitiveCheckBox);
+        optionsPanel.add(wholeWordCheckBox);
+        optionsPanel.add(regexCheckBox);
 
         JPanel topPanel = new JPanel(new BorderLayout());
         topPanel.setBackground(darkBackground);
         topPanel.add(searchField, BorderLayout.CENTER);
-        topPanel.add(caseSensitiveCheckBox, BorderLayout.EAST);
+        topPanel.add(optionsPanel, BorderLayout.SOUTH);
         searchDialog.add(topPanel, BorderLayout.CENTER);
 
         JPanel buttonPanel = new JPanel();
@@ -618,6 +1044,113 @@ public class CustomConsoleWindow extends JFrame {
         searchDialog.setLocationRelativeTo(this);
     }
 
+    // Level, category prefix, thread and text fields above the virtual viewer. Only the viewer's projection changes
+    // as they are edited; the store and the rows already committed are left alone.
+    private void setupFilterBar(Color darkBackground) {
+        Color darkForeground = new Color(200, 200, 200);
+        Color buttonBackground = new Color(60, 60, 60);
+        Color buttonHover = new Color(80, 80, 80);
+
+        filterLevelBox = new JComboBox<>(new String[] {"All levels", "INFO+", "WARN+", "ERROR+", "FATAL"});
+        filterLevelBox.setBackground(darkBackground);
+        filterLevelBox.setForeground(darkForeground);
+        filterLevelBox.setFocusable(false);
+        filterCategoryField = createFilterField(8, darkBackground, darkForeground);
+        filterThreadField = createFilterField(8, darkBackground, darkForeground);
+        filterTextField = createFilterField(16, darkBackground, darkForeground);
+        JButton clearButton = createStyledButton("Clear", buttonBackground, darkForeground, buttonHover);
+        filterCountLabel = new JLabel("");
+        filterCountLabel.setForeground(darkForeground);
+
+        filterTimer = new Timer(150, e -> applyFilter());
+        filterTimer.setRepeats(false);
+        javax.swing.event.DocumentListener edited = new javax.swing.event.DocumentListener() {
+            public void insertUpdate(javax.swing.event.DocumentEvent e) {
+                filterTimer.restart();
+            }
+            public void removeUpdate(javax.swing.event.DocumentEvent e) {
+                filterTimer.restart();
+            }
+            public void changedUpdate(javax.swing.event.DocumentEvent e) {
+            }
+        };
+        filterCategoryField.getDocument().addDocumentListener(edited);
+        filterThreadField.getDocument().addDocumentListener(edited);
+        filterTextField.getDocument().addDocumentListener(edited);
+        filterLevelBox.addActionListener(e -> applyFilter());
+        clearButton.addActionListener(e -> {
+            filterCategoryField.setText("");
+            filterThreadField.setText("");
+            filterTextField.setText("");
+            filterLevelBox.setSelectedIndex(0);
+            applyFilter();
+        });
+
+        JPanel filterBar = new JPanel(new java.awt.FlowLayout(java.awt.FlowLayout.LEFT, 4, 2));
+        filterBar.setBackground(darkBackground);
+        filterBar.add(filterLevelBox);
+        filterBar.add(createFilterLabel("Category", darkForeground));
+        filterBar.add(filterCategoryField);
+        filterBar.add(createFilterLabel("Thread", darkForeground));
+        filterBar.add(filterThreadField);
+        filterBar.add(createFilterLabel("Text", darkForeground));
+        filterBar.add(filterTextField);
+        filterBar.add(clearButton);
+        filterBar.add(filterCountLabel);
+        add(filterBar, BorderLayout.NORTH);
+    }
+
+    private JTextField createFilterField(int columns, Color background, Color foreground) {
+        JTextField field = new JTextField(columns);
+        field.setBackground(background);
+        field.setForeground(foreground);
+        field.setCaretColor(foreground);
+        field.setBorder(BorderFactory.createCompoundBorder(
+            BorderFactory.createLineBorder(new Color(100, 100, 100)),
+            BorderFactory.createEmptyBorder(2, 5, 2, 5)
+        ));
+        return field;
+    }
+
+    private JLabel createFilterLabel(String text, Color foreground) {
+        JLabel label = new JLabel(text);
+        label.setForeground(foreground);
+        return label;
+    }
+
+    private void applyFilter() {
+        filterTimer.stop();
+        boolean atBottom;
+        synchronized (scrollLock) {
+            atBottom = wasAtBottom;
+        }
+
+        long startTime = System.nanoTime();
+        logViewport.setFilter(new LogFilter((byte) filterLevelBox.getSelectedIndex(),
+            filterCategoryField.getText().trim(), filterThreadField.getText().trim(), filterTextField.getText()));
+        // Counting the rows shown builds every chunk's projection
+        updateFilterCount();
+        filterApplications++;
+        lastFilterNanos = System.nanoTime() - startTime;
+
+        if (atBottom) {
+            forceScrollToBottom();
+        }
+    }
+
+    private void updateFilterCount() {
+        if (filterCountLabel == null) return;
+        int shown = logViewport.getShownRows();
+        filterCountLabel.setText(shown < 0 ? "" : shown + " of " + logStore.getRetainedRows() + " lines");
+    }
+
+    private String filterReport() {
+        LogFilter filter = logViewport.getFilter();
+        return "filter: " + (filter != null ? filter.describe() : "none")
+            + "\nfilters applied: " + filterApplications
+            + "\nlast filter: " + String.format("%.1f", lastFilterNanos / 1_000_000.0) + " ms";
+    }
+
     private JButton createStyledButton(String text, Color background, Color foreground, Color hoverColor) {
         JButton button = new JButton(text);
         button.setBackground(background);
@@ -640,100 +1173,203 @@ public class CustomConsoleWindow extends JFrame {
     }
 
     private CustomConsoleAppender appender;
-    private String currentPatternLayoutString = "%d{HH:mm:ss} [%t] %-5p %c - %m%n";
-
-    private String[] layoutParamOrder = new String[] {
-        "%d{HH:mm:ss}",
-        "[%t]",
-        "%-5p",
-        "%c"
-    };
-
-    private Set<String> activeLayoutParams = new HashSet<>(Arrays.asList(layoutParamOrder));
 
-    private void rebuildPatternLayoutString() {
-        StringBuilder sb = new StringBuilder();
-        for (String param : layoutParamOrder) {
-            if (activeLayoutParams.contains(param)) {
-                sb.append(param).append(" ");
-            }
-        }
-        sb.append("- %m%n");
-        currentPatternLayoutString = sb.toString();
-    }
+    private Set<String> activeLayoutParams = new HashSet<>(Arrays.asList(LogLineFormatter.COLUMNS));
+    // Replaced under pendingLock when a column is toggled
+    private volatile LogLineFormatter formatter = new LogLineFormatter(logStore, activeLayoutParams);
 
     private void insertLayoutParam(String param) {
         activeLayoutParams.add(param);
-        rebuildPatternLayoutString();
     }
 
     private void removeLayoutParam(String param) {
         activeLayoutParams.remove(param);
-        rebuildPatternLayoutString();
     }
 
-    public void setPatternLayout() {
-        this.appender.setLayout(new PatternLayout(currentPatternLayoutString));
-    }
+    // Fixed scopes for the prefix columns: what the grammar gives the same text in a full line
+    private static final String TIME_SCOPE = "comment log.date";
+    private static final String CATEGORY_SCOPE = "constant.language log.constant";
+    private static final String[] LEVEL_SCOPES = {
+        "markup.changed log.debug",
+        "markup.inserted log.info",
+        "markup.deleted log.warning",
+        "string.regexp, strong log.error",
+        "string.regexp, strong log.error"
+    };
 
-    private void rerenderLogMessages() {
-        syntaxHighlightExecutor.submit(() -> {
-            textPane.setText("");
-            segments.clear();
+    // Length of a row's prefix columns under the active layout, "- " included, and their fixed-scope runs
+    private static final class RowPrefix {
+        final int length;
+        final int[] spans;
 
-            List<String> messages = new ArrayList<>();
-            for (int i = 0; i < logEvents.size(); i++) {
-                LoggingEvent event = logEvents.get(i);
-                String message = this.appender.getLayout().format(event);
-                messages.add(message);
-                appendTextNoHighlight(message);
-            }
+        RowPrefix(int length, int[] spans) {
+            this.length = length;
+            this.spans = spans;
+        }
+    }
 
-            int offset = 0;
-            for (int i = 0; i < messages.size(); i++) {
-                offset += messages.get(i).length();
+    // One entry per (level, thread, category) seen under the active layout; EDT only, emptied on a column toggle
+    private final Map<Long, RowPrefix> rowPrefixes = new HashMap<>();
+
+    // Must agree with LogLineFormatter on every column's width
+    private RowPrefix rowPrefix(LogEventStore.Chunk chunk, int index) {
+        byte level = chunk.getLevel(index);
+        int threadId = chunk.getThreadId(index);
+        int categoryId = chunk.getCategoryId(index);
+        long key = ((long) threadId << 35) | ((long) categoryId << 3) | level;
+        RowPrefix cached = rowPrefixes.get(key);
+        if (cached != null) return cached;
+
+        int[] runs = new int[LogLineFormatter.COLUMNS.length * 3];
+        int count = 0;
+        int offset = 0;
+        for (String param : LogLineFormatter.COLUMNS) {
+            if (!formatter.shows(param)) continue;
+
+            int width;
+            int styled = 0;
+            String scope = null;
+            switch (param) {
+                case LogLineFormatter.TIME:
+                    width = styled = LogLineFormatter.TIME_WIDTH;
+                    scope = TIME_SCOPE;
+                    break;
+                case LogLineFormatter.THREAD:
+                    width = logStore.getThreadName(threadId).length() + 2;
+                    break;
+                case LogLineFormatter.LEVEL:
+                    styled = LogEventStore.levelName(level).length();
+                    width = Math.max(LogLineFormatter.LEVEL_WIDTH, styled);
+                    scope = LEVEL_SCOPES[level];
+                    break;
+                case LogLineFormatter.CATEGORY:
+                    width = styled = logStore.getCategoryName(categoryId).length();
+                    scope = CATEGORY_SCOPE;
+                    break;
+                default:
+                    continue;
             }
-            for (int i = messages.size() - 1; i >= 0; i--) {
-                String message = messages.get(i);
-                offset -= message.length();
-                applySyntaxHighlightingAsync(message, offset, segments.get(i));
+            if (scope != null && styled > 0) {
+                runs[count++] = offset;
+                runs[count++] = styled;
+                runs[count++] = getScopeStyle(scope).id;
             }
+            offset += width + 1;
+        }
 
-            SwingUtilities.invokeLater(() -> {
-                synchronized (scrollLock) {
-                    wasAtBottom = true;
-                }
-                scheduleScrollToBottom();
-            });
-        });
+        RowPrefix prefix = new RowPrefix(offset + 2, count == 0 ? NO_SPANS : Arrays.copyOf(runs, count));
+        rowPrefixes.put(key, prefix);
+        return prefix;
     }
 
-    public void appendTextNoHighlight(String text) {
-        try {
-            Document doc = textPane.getDocument();
-            JScrollBar verticalScrollBar = ((JScrollPane) textPane.getParent().getParent()).getVerticalScrollBar();
-            
-            synchronized (scrollLock) {
-                wasAtBottom = verticalScrollBar.getValue() + verticalScrollBar.getVisibleAmount() >= verticalScrollBar.getMaximum() - 20;
+    // Length of the row as displayed under the active layout
+    private int rowLength(LogEventStore.Chunk chunk, int index) {
+        return rowPrefix(chunk, index).length + chunk.getBodyLength(index);
+    }
+
+    // The row's prefix and body runs under the active layout, relative to its first character; EDT only
+    int[] displaySpans(LogEventStore.Chunk chunk, int index, TextSegment segment) {
+        RowPrefix prefix = rowPrefix(chunk, index);
+        return segment.displaySpans(prefix.length, segment.prefixStyled ? prefix.spans : NO_SPANS);
+    }
+
+    private long columnToggles = 0;
+    private long lastToggleNanos = 0;
+
+    // Re-lays out the rows for the active columns without tokenizing anything: body spans don't depend on the
+    // layout, the prefix columns are styled from fixed scopes, and positions are row numbers plus an offset, so
+    // segments stay as they are. The virtual viewer formats only what it paints and just repaints, which keeps its
+    // toggle independent of the history length. The text pane still costs O(history): every row is formatted into
+    // a document built off-screen and swapped in whole, and each row gets its new documentStart.
+    private void relayoutColumns() {
+        long startTime = System.nanoTime();
+        ExternalConsoleSettings.ColorMode color = appender.colorMode();
+        StringBuilder text = logViewport == null ? new StringBuilder() : null;
+
+        synchronized (pendingLock) {
+            formatter = new LogLineFormatter(logStore, activeLayoutParams);
+            rowPrefixes.clear();
+
+            // New document positions continue past the old ones, so nothing still holding one can alias a new row
+            long position = documentEnd;
+            pendingBatch.clear();
+            for (LogEventStore.Chunk chunk : logStore.snapshot()) {
+                int committed = chunk.committedSize();
+                if (text != null) {
+                    for (int i = 0; i < committed; i++) {
+                        chunk.getSegment(i).documentStart = position;
+                        formatStoredRow(chunk, i, text);
+                        position += rowLength(chunk, i);
+                    }
+                }
+                // Rows the drain thread queued under the old layout are queued again in the new one
+                for (int i = committed; i < chunk.size(); i++) {
+                    pendingBatch.add(chunk, i, formatter, color);
+                }
+            }
+            if (text != null) {
+                documentBase = documentEnd;
+                documentEnd = position;
             }
+        }
 
-            // int lineCount = getLineCount();
-            // if (lineCount >= MAX_LINES) {
-            //     removeExcessLines(lineCount - MAX_LINES + 1);
-            // }
+        if (text != null) {
+            swapDocument(text.toString());
+        } else {
+            // Offsets into a row move with its prefix
+            logViewport.clearSelection();
+            logViewport.rowsCommitted();
+        }
+        restartSearch();
 
-            int start = doc.getLength();
-            doc.insertString(start, text, defaultStyle);
+        columnToggles++;
+        lastToggleNanos = System.nanoTime() - startTime;
 
-            TextSegment segment = new TextSegment(start, text.length(), defaultStyle);
-            segments.add(segment);
+        synchronized (scrollLock) {
+            wasAtBottom = true;
+        }
+        commitPending();
+        scheduleScrollToBottom();
+    }
 
-            if (wasAtBottom) {
-                scheduleScrollToBottom();
+    // Builds the relaid-out text pane document while it is not displayed, so no view or listener sees the
+    // intermediate states, then puts it in place of the old one in a single step. Styling every run up front
+    // would cost seconds on a long history, so highlighted rows keep their spans and are marked for the
+    // scheduler to re-apply, in view first, the same way it hands out new rows.
+    private void swapDocument(String text) {
+        DefaultStyledDocument fresh = new DefaultStyledDocument(styleContext);
+        // Line styles go in with the text, one insert per run of rows that share one
+        int runStart = 0;
+        int offset = 0;
+        Style runStyle = null;
+        try {
+            for (LogEventStore.Chunk chunk : logStore.snapshot()) {
+                for (int i = 0; i < chunk.committedSize(); i++) {
+                    TextSegment segment = chunk.getSegment(i);
+                    if (segment.highlight == TextSegment.HIGHLIGHT_DONE) {
+                        segment.highlight = TextSegment.HIGHLIGHT_UNAPPLIED;
+                    }
+                    if (segment.style != runStyle && offset > runStart) {
+                        fresh.insertString(fresh.getLength(), text.substring(runStart, offset), runStyle);
+                        runStart = offset;
+                    }
+                    runStyle = segment.style;
+                    offset += rowLength(chunk, i);
+                }
+            }
+            if (offset > runStart) {
+                fresh.insertString(fresh.getLength(), text.substring(runStart, offset), runStyle);
             }
         } catch (BadLocationException e) {
             log.error(e);
         }
+        textPane.setStyledDocument(fresh);
+        doc = fresh;
+    }
+
+    // The row as displayed under the active columns; EDT only, since the layout can change between calls
+    void formatStoredRow(LogEventStore.Chunk chunk, int index, StringBuilder sb) {
+        formatter.format(chunk, index, sb);
     }
 
     private void setupRightClickMenus() {
@@ -743,7 +1379,7 @@ public class CustomConsoleWindow extends JFrame {
         textPanePopupMenu.setFont(new Font("Consolas", Font.PLAIN, 14));
 
         JMenuItem copyItem = new JMenuItem("Copy");
-        copyItem.addActionListener(e -> textPane.copy());
+        copyItem.addActionListener(e -> copySelection());
         copyItem.setBackground(new Color(30, 30, 30));
         copyItem.setForeground(Color.WHITE);
         copyItem.setFont(new Font("Consolas", Font.PLAIN, 14));
@@ -769,7 +1405,7 @@ public class CustomConsoleWindow extends JFrame {
             AbstractButton[] items = new AbstractButton[2];
 
             JMenuItem inputCopyItem = new JMenuItem("Copy");
-            inputCopyItem.addActionListener(e -> textPane.copy());
+            inputCopyItem.addActionListener(e -> copySelection());
             items[0] = inputCopyItem;
 
             JMenuItem inputPasteItem = new JMenuItem("Paste");
@@ -806,6 +1442,22 @@ public class CustomConsoleWindow extends JFrame {
         clearItem.setFont(new Font("Consolas", Font.PLAIN, 14));
         textPanePopupMenu.add(clearItem);
 
+        JMenuItem diagnosticsItem = new JMenuItem("Diagnostics");
+        diagnosticsItem.addActionListener(e -> showDiagnostics());
+        diagnosticsItem.setBackground(new Color(30, 30, 30));
+        diagnosticsItem.setForeground(Color.WHITE);
+        diagnosticsItem.setFont(new Font("Consolas", Font.PLAIN, 14));
+        textPanePopupMenu.add(diagnosticsItem);
+
+        if (grammar != null) {
+            JMenuItem profileItem = new JMenuItem("Grammar Profile");
+            profileItem.addActionListener(e -> showDarkThemedReport(grammar.profileReport(), "Grammar Profile"));
+            profileItem.setBackground(new Color(30, 30, 30));
+            profileItem.setForeground(Color.WHITE);
+            profileItem.setFont(new Font("Consolas", Font.PLAIN, 14));
+            textPanePopupMenu.add(profileItem);
+        }
+
         textPanePopupMenu.addSeparator();
 
         AbstractButton[] items = new AbstractButton[4];
@@ -829,7 +1481,7 @@ public class CustomConsoleWindow extends JFrame {
             textPanePopupMenu.add(item);
         }
 
-        textPane.addMouseListener(new MouseAdapter() {
+        getLogView().addMouseListener(new MouseAdapter() {
             public void mousePressed(MouseEvent e) {
                 if (e.isPopupTrigger())
                 textPanePopupMenu.show(e.getComponent(), e.getX(), e.getY());
@@ -842,10 +1494,18 @@ public class CustomConsoleWindow extends JFrame {
         });
     }
 
+    private void copySelection() {
+        if (logViewport != null) {
+            logViewport.copy();
+        } else {
+            textPane.copy();
+        }
+    }
+
     private void setupKeyBindings() {
         KeyStroke ctrlF = KeyStroke.getKeyStroke(KeyEvent.VK_F, InputEvent.CTRL_DOWN_MASK);
-        textPane.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(ctrlF, "search");
-        textPane.getActionMap().put("search", new AbstractAction() {
+        getLogView().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(ctrlF, "search");
+        getLogView().getActionMap().put("search", new AbstractAction() {
             @Override
             public void actionPerformed(ActionEvent e) {
                 searchDialog.setVisible(true);
@@ -858,112 +1518,105 @@ public class CustomConsoleWindow extends JFrame {
     }
 
     private void clearHighlights() {
-        try {
-            for (Map.Entry<Integer, Style> entry : searchHighlights.entrySet()) {
-                int position = entry.getKey();
-
-                Style originalStyle = findOriginalStyle(position);
-                if (originalStyle != null) {
-                    doc.setCharacterAttributes(position, 1, originalStyle, true);
-                }
-            }
-            searchHighlights.clear();
-            matchPositions.clear();
-            currentMatchIndex = 0;
-            updateMatchCounter();
-        } catch (Exception e) {
-            log.error(e);
-        }
+        storeSearch.cancel();
+        searchRunning = false;
+        selectFirstMatch = false;
+        restoreMatchIndex = -1;
+        searchQuery = null;
+        matchPositions.clear();
+        currentMatchIndex = 0;
+        repaintMatches();
+        updateMatchCounter();
     }
-    
-    private Style findOriginalStyle(int position) {
-        for (TextSegment segment : segments) {
-            if (position >= segment.start && position < segment.start + segment.length) {
-
-                Style syntaxStyle = segment.syntaxHighlights.get(position);
-                if (syntaxStyle != null) {
-                    return syntaxStyle;
-                }
 
-                return segment.style;
-            }
-        }
-        return defaultStyle;
+    private void repaintMatches() {
+        getLogView().repaint();
     }
 
-    private void highlightAllMatches(String searchText) {
+    // Both viewers search the retained rows in the background; hits stream in through searchResults.
+    // False if the query is an invalid regex, which has been reported to the user.
+    private boolean highlightAllMatches(String searchText) {
         clearHighlights();
-        matchPositions.clear();
-        currentMatchIndex = 0;
-    
+        boolean caseSensitive = caseSensitiveCheckBox.isSelected();
+        boolean wholeWord = wholeWordCheckBox.isSelected();
+        boolean regex = regexCheckBox.isSelected();
         try {
-            String content = doc.getText(0, doc.getLength());
-            String search = searchText;
-    
-            if (!caseSensitiveCheckBox.isSelected()) {
-                content = content.toLowerCase();
-                search = search.toLowerCase();
-            }
-    
-            int index = 0;
-            while ((index = content.indexOf(search, index)) != -1) {
-                matchPositions.add(index);
-                
-                for (int i = 0; i < searchText.length(); i++) {
-                    int position = index + i;
-                    Style originalStyle = findOriginalStyle(position);
-                    
-                    Style combinedStyle = createCombinedStyle(originalStyle, highlightStyle);
-                    doc.setCharacterAttributes(position, 1, combinedStyle, true);
-                    searchHighlights.put(position, combinedStyle);
-                }
-                
-                index += searchText.length();
-            }
-        } catch (BadLocationException e) {
-            log.error(e);
+            storeSearch.start(searchText, caseSensitive, wholeWord, regex, formatter, this::searchResults);
+        } catch (PatternSyntaxException e) {
+            showDarkThemedMessage("Invalid regex: " + e.getDescription(), "Search");
+            searchField.requestFocus();
+            return false;
         }
-    
+        searchQuery = searchText;
+        searchCaseSensitive = caseSensitive;
+        searchWholeWord = wholeWord;
+        searchRegex = regex;
+        searchRunning = true;
         updateMatchCounter();
+        return true;
     }
-    
-    private Style createCombinedStyle(Style baseStyle, Style overlayStyle) {
-        Style combinedStyle = doc.addStyle("Combined_" + System.currentTimeMillis(), baseStyle);
-        
-        StyleConstants.setBackground(combinedStyle, StyleConstants.getBackground(overlayStyle));
-        
-        if (StyleConstants.getForeground(baseStyle) != null) {
-            StyleConstants.setForeground(combinedStyle, StyleConstants.getForeground(baseStyle));
+
+    // Hits are offsets into rows as formatted under the old columns, so a column toggle runs the same query again
+    // with the new formatter. The counter goes back to the hit it was on once the new hits reach that far.
+    private void restartSearch() {
+        if (searchQuery == null) return;
+        String text = searchQuery;
+        int matchIndex = currentMatchIndex;
+        boolean selectFirst = selectFirstMatch;
+        clearHighlights();
+        storeSearch.start(text, searchCaseSensitive, searchWholeWord, searchRegex, formatter, this::searchResults);
+        searchQuery = text;
+        selectFirstMatch = selectFirst;
+        restoreMatchIndex = matchIndex;
+        searchRunning = true;
+        updateMatchCounter();
+    }
+
+    private void searchResults(long[] positions, int[] lengths, int count, boolean done) {
+        for (int i = 0; i < count; i++) {
+            matchPositions.add(positions[i], lengths[i]);
         }
-        
-        StyleConstants.setBold(combinedStyle, StyleConstants.isBold(baseStyle));
-        StyleConstants.setItalic(combinedStyle, StyleConstants.isItalic(baseStyle));
-        StyleConstants.setUnderline(combinedStyle, StyleConstants.isUnderline(baseStyle));
-        
-        return combinedStyle;
+        searchRunning = !done;
+        if (count > 0) repaintMatches();
+
+        if (restoreMatchIndex >= 0 && (matchPositions.size() > restoreMatchIndex || done)) {
+            currentMatchIndex = Math.max(0, Math.min(restoreMatchIndex, matchPositions.size() - 1));
+            restoreMatchIndex = -1;
+        }
+
+        if (selectFirstMatch && !matchPositions.isEmpty()) {
+            selectFirstMatch = false;
+            currentMatchIndex = 0;
+            selectMatch(matchPositions.get(0), matchPositions.lengthAt(0));
+        } else if (selectFirstMatch && done) {
+            selectFirstMatch = false;
+            updateMatchCounter();
+            showDarkThemedMessage("Text not found", "Search Result");
+            searchField.requestFocus();
+            return;
+        }
+        updateMatchCounter();
     }
 
     private void updateMatchCounter() {
+        String more = searchRunning ? "\u2026" : "";
         if (matchPositions.isEmpty()) {
-            matchCounterLabel.setText("0/0");
+            matchCounterLabel.setText("0/0" + more);
         } else {
-            matchCounterLabel.setText((currentMatchIndex + 1) + "/" + matchPositions.size());
+            matchCounterLabel.setText((currentMatchIndex + 1) + "/" + matchPositions.size() + more);
         }
     }
 
     private void navigateToNextMatch() {
         if (matchPositions.isEmpty()) return;
         boolean isFocused = false;
-        if (!textPane.isFocusOwner()) {
+        if (!getLogView().isFocusOwner()) {
             isFocused = true;
-            textPane.requestFocus(true);
+            getLogView().requestFocus(true);
         }
         
         currentMatchIndex = (currentMatchIndex + 1) % matchPositions.size();
-        int position = matchPositions.get(currentMatchIndex);
-        textPane.setCaretPosition(position);
-        textPane.setSelectionStart(position);
-        textPane.setSelectionEnd(position + searchField.getText().length());
+        selectMatch(matchPositions.get(currentMatchIndex), matchPositions.lengthAt(currentMatchIndex));
         updateMatchCounter();
         if (isFocused) {
             searchField.requestFocus();
@@ -974,13 +1627,23 @@ public class CustomConsoleWindow extends JFrame {
         if (matchPositions.isEmpty()) return;
         
         currentMatchIndex = (currentMatchIndex - 1 + matchPositions.size()) % matchPositions.size();
-        int position = matchPositions.get(currentMatchIndex);
-        textPane.setCaretPosition(position);
-        textPane.setSelectionStart(position);
-        textPane.setSelectionEnd(position + searchField.getText().length());
+        selectMatch(matchPositions.get(currentMatchIndex), matchPositions.lengthAt(currentMatchIndex));
         updateMatchCounter();
     }
 
+    private void selectMatch(long position, int length) {
+        if (logViewport != null) {
+            logViewport.select(position, length);
+            return;
+        }
+        int offset = documentOffsetOf(position);
+        if (offset < 0 || offset + length > doc.getLength()) return;
+
+        textPane.setCaretPosition(offset);
+        textPane.setSelectionStart(offset);
+        textPane.setSelectionEnd(offset + length);
+    }
+
     private void showDarkThemedMessage(String message, String title) {
         JPanel panel = new JPanel();
         panel.setBackground(new Color(43, 43, 43));
@@ -1000,6 +1663,30 @@ public class CustomConsoleWindow extends JFrame {
         return;
     }
     
+    protected void showDiagnostics() {
+        showDarkThemedReport(diagnostics.report(), "Console Diagnostics");
+    }
+
+    protected void showDarkThemedReport(String report, String title) {
+        JTextArea reportArea = new JTextArea(report);
+        reportArea.setEditable(false);
+        reportArea.setBackground(new Color(30, 30, 30));
+        reportArea.setForeground(new Color(200, 200, 200));
+        reportArea.setFont(new Font("Consolas", Font.PLAIN, 13));
+        reportArea.setBorder(BorderFactory.createEmptyBorder(5, 5, 5, 5));
+
+        JScrollPane reportScrollPane = new JScrollPane(reportArea);
+        reportScrollPane.setPreferredSize(new java.awt.Dimension(700, 450));
+
+        JDialog dialog = new JDialog(this, title, false);
+        dialog.setIconImage(Toolkit.getDefaultToolkit().getImage("graphics/ui/s_icon64.png"));
+        dialog.getContentPane().setBackground(new Color(43, 43, 43));
+        dialog.add(reportScrollPane);
+        dialog.pack();
+        dialog.setLocationRelativeTo(this);
+        dialog.setVisible(true);
+    }
+    
     private void applyDarkTheme(Container container) {
         for (Component comp : container.getComponents()) {
             if (comp instanceof JPanel || comp instanceof JComponent) {
@@ -1012,44 +1699,43 @@ public class CustomConsoleWindow extends JFrame {
         }
     }
 
-    private String lastSearchText = "";
+    // The query and options of the hits currently shown, so Find steps through them instead of searching again
+    private String lastSearchKey = "";
     private void findNext() {
         String searchText = searchField.getText();
         if (searchText.isEmpty()) return;
-    
-        boolean sameSearch = searchText.equals(lastSearchText) && !matchPositions.isEmpty();
+
+        String searchKey = (caseSensitiveCheckBox.isSelected() ? "c" : "-") + (wholeWordCheckBox.isSelected() ? "w" : "-")
+            + (regexCheckBox.isSelected() ? "r" : "-") + searchText;
+        boolean sameSearch = searchKey.equals(lastSearchKey) && (searchRunning || !matchPositions.isEmpty());
     
         if (sameSearch) {
             navigateToNextMatch();
+        } else if (highlightAllMatches(searchText)) {
+            lastSearchKey = searchKey;
+            selectFirstMatch = true;
         } else {
-            lastSearchText = searchText;
-            highlightAllMatches(searchText);
-    
-            if (matchPositions.isEmpty()) {
-                showDarkThemedMessage("Text not found", "Search Result");
-                searchField.requestFocus();
-                return;
-            }
-    
-            currentMatchIndex = 0;
-            int position = matchPositions.get(currentMatchIndex);
-            textPane.setCaretPosition(position);
-            textPane.setSelectionStart(position);
-            textPane.setSelectionEnd(position + searchText.length());
-            updateMatchCounter();
+            lastSearchKey = "";
         }
     }
 
     public void clearConsole() {
         SwingUtilities.invokeLater(() -> {
             try {
-                doc.remove(0, doc.getLength());
-                segments.clear();
-                searchHighlights.clear();
-                matchPositions.clear();
-                currentMatchIndex = 0;
-                logEvents.clear();
-                updateMatchCounter();
+                synchronized (pendingLock) {
+                    pendingBatch.clear();
+                    logStore.clear();
+                }
+                advanceDocumentEpoch();
+                documentBase = documentEnd;
+                if (logViewport == null) {
+                    doc.remove(0, doc.getLength());
+                } else {
+                    logViewport.clearSelection();
+                    logViewport.rowsCommitted();
+                    updateFilterCount();
+                }
+                clearHighlights();
             } catch (BadLocationException e) {
                 log.error(e);
             }
@@ -1058,15 +1744,23 @@ public class CustomConsoleWindow extends JFrame {
 
     public void dispose() {
         try {
-            if (syntaxHighlightExecutor != null && !syntaxHighlightExecutor.isShutdown()) {
-                syntaxHighlightExecutor.shutdown();
+            if (commitTimer != null) {
+                commitTimer.stop();
             }
+            if (highlightTimer != null) {
+                highlightTimer.stop();
+            }
+            if (filterTimer != null) {
+                filterTimer.stop();
+            }
+            advanceDocumentEpoch();
+            if (highlighter != null) {
+                highlighter.shutdown();
+            }
+            storeSearch.shutdown();
             if (statusExecutor != null && !statusExecutor.isShutdown()) {
                 statusExecutor.shutdown();
             }
-            if (appendExecutor != null && !appendExecutor.isShutdown()) {
-                appendExecutor.shutdown();
-            }
             
             clearHighlights();
             
@@ -1076,6 +1770,7 @@ public class CustomConsoleWindow extends JFrame {
                 } catch (Exception e) {
                     log.error("Error removing appender", e);
                 }
+                appender.close();
             }
             
         } catch (Exception e) {
@@ -1085,70 +1780,6 @@ public class CustomConsoleWindow extends JFrame {
         }
     }
 
-    private int getLineCount() {
-        try {
-            String text = doc.getText(0, doc.getLength());
-            return text.split("\n", -1).length;
-        } catch (BadLocationException e) {
-            return 0;
-        }
-    }
-    
-    private void removeExcessLines(int linesToRemove) {
-        try {
-            String text = doc.getText(0, doc.getLength());
-            String[] lines = text.split("\n", -1);
-            
-            if (lines.length <= linesToRemove) {
-                doc.remove(0, doc.getLength());
-                segments.clear();
-                return;
-            }
-            
-            final int startPosition = calculateStartPosition(lines, linesToRemove);
-            
-            doc.remove(0, startPosition);
-            
-            segments.removeIf(segment -> segment.start + segment.length <= startPosition);
-            
-            for (TextSegment segment : segments) {
-                segment.start -= startPosition;
-            }
-            
-            Map<Integer, Style> newSearchHighlights = new HashMap<>();
-            for (Map.Entry<Integer, Style> entry : searchHighlights.entrySet()) {
-                int position = entry.getKey();
-                if (position >= startPosition) {
-                    newSearchHighlights.put(position - startPosition, entry.getValue());
-                }
-            }
-            searchHighlights = newSearchHighlights;
-            
-            for (int i = 0; i < matchPositions.size(); i++) {
-                int position = matchPositions.get(i);
-                if (position >= startPosition) {
-                    matchPositions.set(i, position - startPosition);
-                } else {
-                    matchPositions.remove(i);
-                    i--;
-                }
-            }
-            
-        } catch (Exception e) {
-            log.error("Error removing excess lines: " + e.getMessage(), e);
-        }
-    }
-    
-    private int calculateStartPosition(String[] lines, int linesToRemove) {
-        int startPosition = 0;
-        int lineCount = 0;
-        for (int i = 0; i < lines.length && lineCount < linesToRemove; i++) {
-            startPosition += lines[i].length() + 1;
-            lineCount++;
-        }
-        return startPosition;
-    }
-
     protected ImageIcon getIconScaled(float scaleFactor, String imagePath) {
         ImageIcon icon = new ImageIcon(imagePath);
         Image img = icon.getImage();
@@ -1196,8 +1827,7 @@ public class CustomConsoleWindow extends JFrame {
                 this.setIcon(onIcon);
                 insertLayoutParam(layoutParam);
             }
-            setPatternLayout();
-            rerenderLogMessages();
+            relayoutColumns();
             com.fs.graphics.A.ooOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOOO s;
         }
 
@@ -0,0 +1,151 @@
+package data.scripts;
+
+import org.apache.log4j.Logger;
+import org.json.JSONArray;
+
+import com.fs.starfarer.api.Global;
+
+public class ExternalConsoleSettings {
+    private static final Logger log = Logger.getLogger(ExternalConsoleSettings.class);
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        try {
+            return Global.getSettings().getBoolean(key);
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        try {
+            return Global.getSettings().getInt(key);
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+
+    public static String getString(String key, String defaultValue) {
+        try {
+            String value = Global.getSettings().getString(key);
+            return value != null ? value : defaultValue;
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+
+    // null when the key is missing or isn't an array
+    public static JSONArray getJSONArray(String key) {
+        try {
+            return Global.getSettings().getJSONArray(key);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    public enum ColorMode {
+        // Full TextMate grammar highlighting
+        SYNTAX,
+        // Whole lines colored by log level at insert time, plus a few fixed tokens; no regex
+        LEVEL,
+        NONE;
+
+        public static ColorMode parse(String value) {
+            if (value != null) {
+                for (ColorMode mode : values()) {
+                    if (mode.name().equalsIgnoreCase(value.trim())) return mode;
+                }
+            }
+            log.warn("Unknown externalconsolewindowcolormode \"" + value + "\", using syntax");
+            return SYNTAX;
+        }
+    }
+
+    // Falls back to the older externalconsolewindowcolorize switch when no mode is set
+    public static ColorMode getColorMode() {
+        String mode = getString("externalconsolewindowcolormode", "");
+        if (mode.trim().isEmpty()) {
+            return getBoolean("externalconsolewindowcolorize", true) ? ColorMode.SYNTAX : ColorMode.NONE;
+        }
+        return ColorMode.parse(mode);
+    }
+
+    // In level mode, also color exception names and error/warning words inside the message
+    public static boolean isLevelColorTokens() {
+        return getBoolean("externalconsolewindowlevelcolortokens", true);
+    }
+
+    public static int getBufferCapacity() {
+        int capacity = getInt("externalconsolewindowbuffercapacity", 65536);
+        if (capacity < 2) {
+            log.warn("externalconsolewindowbuffercapacity must be at least 2, using 65536");
+            return 65536;
+        }
+        return capacity;
+    }
+
+    public static LogEventRingBuffer.OverflowPolicy getOverflowPolicy() {
+        return LogEventRingBuffer.OverflowPolicy.parse(getString("externalconsolewindowoverflowpolicy", "drop_oldest"));
+    }
+
+    public static int getOverflowSampleRate() {
+        return Math.max(1, getInt("externalconsolewindowoverflowsamplerate", 10));
+    }
+
+    public static int getCommitIntervalMs() {
+        return Math.max(5, Math.min(250, getInt("externalconsolewindowcommitintervalms", 16)));
+    }
+
+    // 0 keeps every line for the whole session
+    public static int getRetainedLines() {
+        return Math.max(0, getInt("externalconsolewindowretainlines", 200000));
+    }
+
+    public static long getRetainedBytes() {
+        return Math.max(0, getInt("externalconsolewindowretainmegabytes", 256)) * 1024L * 1024L;
+    }
+
+    // Regex time a row may take while highlighting before the rest of it is left unstyled; 0 = unlimited
+    public static int getRegexRowBudgetMs() {
+        return Math.max(0, getInt("externalconsolewindowregexrowbudgetms", 100));
+    }
+
+    // Time a single rule match may take; 0 = unlimited
+    public static int getRegexRuleBudgetMs() {
+        return Math.max(0, getInt("externalconsolewindowregexrulebudgetms", 20));
+    }
+
+    // Overruns after which a rule stops being used for the rest of the session; 0 = never
+    public static int getRegexQuarantineOverruns() {
+        return Math.max(0, getInt("externalconsolewindowregexquarantineoverruns", 3));
+    }
+
+    // Rows per second highlighted in the background when they are nowhere near the view; 0 = only on demand
+    public static int getHighlightIdleRate() {
+        return Math.max(0, getInt("externalconsolewindowhighlightidlerate", 500));
+    }
+
+    // One in this many highlighted rows is re-timed rule by rule for the grammar profile; 0 = off
+    public static int getProfileSampleRate() {
+        return Math.max(0, getInt("externalconsolewindowprofilesamplerate", 64));
+    }
+
+    // Time a regex search may spend on one display line before skipping the rest of it; 0 = unlimited
+    public static int getSearchLineBudgetMs() {
+        return Math.max(0, getInt("externalconsolewindowsearchlinebudgetms", 50));
+    }
+
+    // Time a regex search may take over the whole history before it stops with what it has; 0 = unlimited
+    public static int getSearchBudgetMs() {
+        return Math.max(0, getInt("externalconsolewindowsearchbudgetms", 10000));
+    }
+
+    // Trigram index over message text, so searches only verify the rows that can match
+    public static boolean isSearchIndexEnabled() {
+        return getBoolean("externalconsolewindowsearchindex", true);
+    }
+
+    // "textpane" keeps the classic JTextPane; "virtual" paints only the visible rows straight from the log store
+    public static boolean isVirtualViewer() {
+        return "virtual".equalsIgnoreCase(getString("externalconsolewindowviewer", "textpane").trim());
+    }
+}
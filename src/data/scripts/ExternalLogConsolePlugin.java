@@ -58,22 +58,11 @@ public class ExternalLogConsolePlugin extends BaseModPlugin {
                 
                 try {
                     if (Global.getSettings().getModManager().isModEnabled("lw_console")) {
-                        if (Global.getSettings().getBoolean("externalconsolewindowcolorize")) {
-                            currentWindow = new CommandEnabledCustomConsoleWindow();
-                            currentAppender = new CustomConsoleAppender(currentWindow.preInit());
-                        } else {
-                            currentWindow = new CommandEnabledCustomConsoleWindow();
-                            currentAppender = new CustomConsoleAppenderNoColor(currentWindow.preInit());
-                        }
+                        currentWindow = new CommandEnabledCustomConsoleWindow();
                     } else {
-                        if (Global.getSettings().getBoolean("externalconsolewindowcolorize")) {
-                            currentWindow = new CustomConsoleWindow();
-                            currentAppender = new CustomConsoleAppender(currentWindow.preInit());
-                        } else {
-                            currentWindow = new CustomConsoleWindow();
-                            currentAppender = new CustomConsoleAppenderNoColor(currentWindow.preInit());
-                        }
+                        currentWindow = new CustomConsoleWindow();
                     }
+                    currentAppender = createAppender(currentWindow.preInit());
                     
                     if (currentWindow != null && !currentWindow.isVisible()) {
                         currentWindow.setVisible(true);
@@ -91,6 +80,17 @@ public class ExternalLogConsolePlugin extends BaseModPlugin {
         });
     }
     
+    private static CustomConsoleAppender createAppender(CustomConsoleWindow window) {
+        switch (ExternalConsoleSettings.getColorMode()) {
+            case LEVEL:
+                return new CustomConsoleAppenderLevelColor(window);
+            case NONE:
+                return new CustomConsoleAppenderNoColor(window);
+            default:
+                return new CustomConsoleAppender(window);
+        }
+    }
+
     @Override
     public void onApplicationLoad() {
         createWindow();
@@ -0,0 +1,151 @@
+package data.scripts;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+
+import data.scripts.CombinedTokenizer.Rule;
+
+// Per-rule highlighting cost, for tuning log.tmLanguage.json. Finds, matches and text scanned are counted on
+// every row by the tokenizer, at one increment per find rather than per rule. Time can't be split out of a
+// combined pattern, so 1 in sampleRate rows is rescanned here rule by rule, each rule on its own over the whole
+// row, and those timings give the cumulative and p99 figures.
+public class GrammarProfiler {
+    // Log-linear histogram: exact below 16 ns, then 8 buckets per power of two
+    private static final int BUCKETS = 512;
+
+    private final List<Rule> rules;
+    private final CombinedTokenizer tokenizer;
+    private final LongAdder[] sampledScans;
+    private final LongAdder[] sampledNanos;
+    private final AtomicLongArray[] histograms;
+    private final LongAdder sampledRows = new LongAdder();
+    private volatile int sampleRate = 64;
+
+    GrammarProfiler(CombinedTokenizer tokenizer, List<Rule> rules, int maxIndex) {
+        this.tokenizer = tokenizer;
+        this.rules = rules;
+        this.sampledScans = adders(maxIndex + 1);
+        this.sampledNanos = adders(maxIndex + 1);
+        this.histograms = new AtomicLongArray[maxIndex + 1];
+        for (Rule rule : rules) {
+            histograms[rule.index] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    private static LongAdder[] adders(int size) {
+        LongAdder[] adders = new LongAdder[size];
+        for (int i = 0; i < size; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    // 0 turns sampling off; the per-find counters keep running regardless
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = Math.max(0, sampleRate);
+    }
+
+    boolean shouldSample() {
+        int rate = sampleRate;
+        return rate > 0 && ThreadLocalRandom.current().nextInt(rate) == 0;
+    }
+
+    // Mean sampled time of one whole-row scan with the rule, or 0 before it has been sampled
+    double meanNanos(Rule rule) {
+        long scans = sampledScans[rule.index].sum();
+        return scans == 0 ? 0 : (double) sampledNanos[rule.index].sum() / scans;
+    }
+
+    // Times every rule the prefilter would let run on this row; present is null when there is no prefilter
+    void sample(String text, BitSet present, long ruleBudgetNanos) {
+        sampledRows.increment();
+        for (Rule rule : rules) {
+            if (rule.quarantined || !CombinedTokenizer.mayMatch(rule, present)) continue;
+
+            InterruptibleCharSequence input = new InterruptibleCharSequence(text);
+            input.startStep(ruleBudgetNanos);
+            Matcher matcher = rule.pattern.matcher(input);
+            long started = System.nanoTime();
+            try {
+                while (matcher.find()) {
+                    // Only the time matters here; the tokenizer counts the matches that become tokens
+                }
+            } catch (InterruptibleCharSequence.Timeout e) {
+                // Counted at the budget it ran into
+            }
+            long elapsed = System.nanoTime() - started;
+
+            sampledScans[rule.index].increment();
+            sampledNanos[rule.index].add(elapsed);
+            histograms[rule.index].incrementAndGet(bucket(elapsed));
+        }
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < 16) return (int) Math.max(0, nanos);
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int sub = (int) ((nanos >>> (exponent - 3)) & 7);
+        return Math.min(BUCKETS - 1, 16 + (exponent - 4) * 8 + sub);
+    }
+
+    // Largest value that falls into a bucket, so percentiles err on the slow side
+    static long bucketLimit(int bucket) {
+        if (bucket < 16) return bucket;
+        int exponent = (bucket - 16) / 8 + 4;
+        int sub = (bucket - 16) % 8;
+        return ((9L + sub) << (exponent - 3)) - 1;
+    }
+
+    private long percentile(AtomicLongArray histogram, double fraction) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += histogram.get(i);
+        }
+        if (total == 0) return 0;
+        long target = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram.get(i);
+            if (seen >= target) return bucketLimit(i);
+        }
+        return bucketLimit(BUCKETS - 1);
+    }
+
+    // One line per rule, most sampled time first
+    public String report() {
+        long[] finds = new long[histograms.length];
+        long[] chars = new long[histograms.length];
+        tokenizer.collectScanCounts(finds, chars);
+
+        List<Rule> sorted = new ArrayList<>(rules);
+        sorted.sort((a, b) -> Long.compare(sampledNanos[b.index].sum(), sampledNanos[a.index].sum()));
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("sampling 1 in ").append(sampleRate > 0 ? String.valueOf(sampleRate) : "- (off)")
+            .append(" rows, ").append(sampledRows.sum()).append(" sampled; each sampled rule is timed alone over the whole row\n");
+        sb.append(String.format("%-48s %10s %9s %11s %10s %9s %9s%n",
+            "rule", "finds", "matches", "scanned KB", "sampled ms", "avg us", "p99 us"));
+        for (Rule rule : sorted) {
+            long scans = sampledScans[rule.index].sum();
+            long nanos = sampledNanos[rule.index].sum();
+            sb.append(String.format("%-48s %10d %9d %11d %10.1f %9.1f %9.1f%s%n",
+                describe(rule), finds[rule.index], rule.matches.sum(), chars[rule.index] * 2 / 1024,
+                nanos / 1_000_000.0, scans == 0 ? 0.0 : nanos / 1000.0 / scans,
+                percentile(histograms[rule.index], 0.99) / 1000.0,
+                rule.quarantined ? "  QUARANTINED" : ""));
+        }
+        return sb.toString().trim();
+    }
+
+    private static String describe(Rule rule) {
+        String scope = rule.scope.isEmpty() ? "(unscoped)" : rule.scope;
+        int space = scope.indexOf(' ');
+        String label = (space > 0 ? scope.substring(0, space) : scope) + " /" + rule.pattern.pattern() + "/";
+        return label.length() > 48 ? label.substring(0, 45) + "..." : label;
+    }
+}
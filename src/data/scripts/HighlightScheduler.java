@@ -0,0 +1,205 @@
+package data.scripts;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import data.scripts.CustomConsoleWindow.TextSegment;
+
+// Decides which committed rows get syntax highlighting, and when. Rows start out plain; each scheduling pass on
+// the EDT queues the rows in view first, then the rows just above and below it, and finally trickles through the
+// rest of the history at a capped rate while the workers are otherwise idle. Jobs in the worker queue run in that
+// priority order too, so a scroll jumps ahead of any prefetch still waiting.
+// The work done per second is bounded by the size of the view and the idle rate, not by how much history there is.
+public class HighlightScheduler {
+    private static final Logger log = Logger.getLogger(HighlightScheduler.class);
+
+    public static final int PRIORITY_VISIBLE = 0;
+    public static final int PRIORITY_PREFETCH = 1;
+    public static final int PRIORITY_IDLE = 2;
+
+    // Rows above and below the view that are highlighted ahead of scrolling
+    private static final int PREFETCH_ROWS = 200;
+    // Queued jobs are capped so a fast scroll can't bury the workers in rows that are long gone from view
+    private static final int MAX_IN_FLIGHT = 512;
+    // Idle highlighting only runs while the workers have next to nothing else to do
+    private static final int IDLE_MAX_IN_FLIGHT = 8;
+    // Rows the idle pass may look at per call, so one pass over a long, mostly highlighted history stays short
+    private static final int IDLE_SCAN_LIMIT = 4096;
+
+    private final CustomConsoleWindow window;
+    private final LogEventStore store;
+    private final TextMateGrammar grammar;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong sequence = new AtomicLong();
+
+    // Idle trickle: a token bucket refilled at idleRate rows per second, walking the history newest to oldest
+    private final int idleRate;
+    private double idleTokens = 0;
+    private long lastIdleRefill = System.nanoTime();
+    private int idleCursor = -1;
+
+    private final long[] dispatched = new long[3];
+    private long reapplied = 0;
+    private final AtomicLong completed = new AtomicLong();
+    // Jobs from an older document epoch: purged from the queue, skipped when they came up, or finished too late
+    private final AtomicLong staleCancelled = new AtomicLong();
+    private final AtomicLong staleSkipped = new AtomicLong();
+    private final AtomicLong staleAbandoned = new AtomicLong();
+
+    private final class Job implements Runnable, Comparable<Job> {
+        final int priority;
+        final long order;
+        final String text;
+        final int bodyOffset;
+        final TextSegment segment;
+        final int epoch;
+
+        Job(int priority, String text, int bodyOffset, TextSegment segment, int epoch) {
+            this.priority = priority;
+            this.order = sequence.getAndIncrement();
+            this.text = text;
+            this.bodyOffset = bodyOffset;
+            this.segment = segment;
+            this.epoch = epoch;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            if (priority != other.priority) return Integer.compare(priority, other.priority);
+            return Long.compare(order, other.order);
+        }
+
+        @Override
+        public void run() {
+            if (epoch != window.getDocumentEpoch()) {
+                staleSkipped.incrementAndGet();
+                inFlight.decrementAndGet();
+                return;
+            }
+            try {
+                grammar.parseLine(text, bodyOffset, window, segment);
+                // Finished for text that is already gone; the EDT drops the result instead of applying it
+                if (epoch != window.getDocumentEpoch()) staleAbandoned.incrementAndGet();
+            } catch (Exception e) {
+                log.error("Error highlighting line: " + e.getMessage(), e);
+            } finally {
+                segment.highlight = TextSegment.HIGHLIGHT_DONE;
+                inFlight.decrementAndGet();
+                completed.incrementAndGet();
+            }
+        }
+    }
+
+    public HighlightScheduler(CustomConsoleWindow window, LogEventStore store, TextMateGrammar grammar, int idleRate) {
+        this.window = window;
+        this.store = store;
+        this.grammar = grammar;
+        this.idleRate = idleRate;
+        this.executor = new ThreadPoolExecutor(4, 4, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>());
+    }
+
+    // One scheduling pass; EDT only. Cheap enough to call on every commit tick and scroll event.
+    public void schedule() {
+        if (executor.isShutdown()) return;
+        LogEventStore.Chunk[] chunks = store.snapshot();
+        if (chunks.length == 0) return;
+
+        int[] visible = window.visibleRowRange();
+        if (visible != null) {
+            for (int row = visible[0]; row <= visible[1]; row++) {
+                dispatch(chunks, row, PRIORITY_VISIBLE);
+            }
+            for (int distance = 1; distance <= PREFETCH_ROWS && inFlight.get() < MAX_IN_FLIGHT; distance++) {
+                dispatch(chunks, visible[1] + distance, PRIORITY_PREFETCH);
+                dispatch(chunks, visible[0] - distance, PRIORITY_PREFETCH);
+            }
+        }
+
+        scheduleIdle(chunks);
+    }
+
+    private void scheduleIdle(LogEventStore.Chunk[] chunks) {
+        long now = System.nanoTime();
+        idleTokens = Math.min(Math.max(1, idleRate / 10.0), idleTokens + idleRate * (now - lastIdleRefill) / 1e9);
+        lastIdleRefill = now;
+        if (idleRate <= 0 || idleTokens < 1 || inFlight.get() >= IDLE_MAX_IN_FLIGHT) return;
+
+        LogEventStore.Chunk head = chunks[0];
+        LogEventStore.Chunk tail = chunks[chunks.length - 1];
+        int oldest = head.firstRow;
+        int newest = tail.firstRow + tail.committedSize() - 1;
+        if (idleCursor < oldest || idleCursor > newest) idleCursor = newest;
+
+        for (int scanned = 0; scanned < IDLE_SCAN_LIMIT && idleTokens >= 1; scanned++) {
+            if (dispatch(chunks, idleCursor, PRIORITY_IDLE)) idleTokens--;
+            // Wrap back to the newest row so lines committed while scrolled away are picked up too
+            idleCursor = idleCursor > oldest ? idleCursor - 1 : newest;
+        }
+    }
+
+    private boolean dispatch(LogEventStore.Chunk[] chunks, int row, int priority) {
+        if (row < 0 || inFlight.get() >= MAX_IN_FLIGHT) return false;
+        LogEventStore.Chunk chunk = LogEventStore.chunkForRow(chunks, row);
+        if (chunk == null) return false;
+        int index = row - chunk.firstRow;
+        if (index >= chunk.committedSize()) return false;
+
+        TextSegment segment = chunk.getSegment(index);
+        if (segment == null) return false;
+        if (segment.highlight == TextSegment.HIGHLIGHT_UNAPPLIED) {
+            // Spans computed before a column toggle; only the rebuilt document needs the runs again
+            segment.highlight = TextSegment.HIGHLIGHT_DONE;
+            window.segmentHighlighted(segment);
+            reapplied++;
+            return true;
+        }
+        if (grammar == null || segment.highlight != TextSegment.HIGHLIGHT_PENDING) return false;
+        int epoch = window.getDocumentEpoch();
+        if (segment.epoch != epoch) return false;
+        // The body is tokenized behind its logger name rather than the displayed prefix, so the spans don't depend on
+        // which columns are shown and grammar rules keyed on the category still apply
+        String category = store.getCategoryName(chunk.getCategoryId(index));
+        String text = category + " - " + chunk.getBody(index);
+
+        segment.highlight = TextSegment.HIGHLIGHT_QUEUED;
+        inFlight.incrementAndGet();
+        dispatched[priority]++;
+        executor.execute(new Job(priority, text, category.length() + 3, segment, epoch));
+        return true;
+    }
+
+    // Called right after the document epoch moves on: every job still waiting is for text that no longer exists
+    public void cancelStale() {
+        int epoch = window.getDocumentEpoch();
+        executor.getQueue().removeIf(task -> {
+            if (((Job) task).epoch == epoch) return false;
+            staleCancelled.incrementAndGet();
+            inFlight.decrementAndGet();
+            return true;
+        });
+        idleCursor = -1;
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public String report() {
+        return "visible rows queued: " + dispatched[PRIORITY_VISIBLE]
+            + "\nprefetch rows queued: " + dispatched[PRIORITY_PREFETCH]
+            + "\nidle rows queued: " + dispatched[PRIORITY_IDLE]
+            + "\nrows highlighted: " + completed.get()
+            + "\nrows re-applied after a column toggle: " + reapplied
+            + "\njobs in flight: " + inFlight.get()
+            + "\nstale jobs cancelled in queue: " + staleCancelled.get()
+            + "\nstale jobs skipped at start: " + staleSkipped.get()
+            + "\nstale jobs finished too late: " + staleAbandoned.get()
+            + "\nidle rate: " + (idleRate > 0 ? idleRate + " rows/s" : "off");
+    }
+}
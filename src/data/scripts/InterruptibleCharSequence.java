@@ -0,0 +1,69 @@
+package data.scripts;
+
+// Input for regexes that must not run unbounded. java.util.regex has no timeout, but every step of a match reads
+// the input through charAt, so checking the clock every few thousand reads stops even catastrophic backtracking.
+// Two deadlines: one for the whole job (a row, a search) and a shorter one restarted before each single find().
+public final class InterruptibleCharSequence implements CharSequence {
+    private static final int CHECK_INTERVAL = 2048;
+    private static final long NONE = Long.MAX_VALUE;
+
+    public static final class Timeout extends RuntimeException {
+        // True if the per-find budget ran out rather than the one for the whole job
+        public final boolean step;
+
+        Timeout(boolean step) {
+            super(step ? "regex step budget exceeded" : "regex budget exceeded", null, false, false);
+            this.step = step;
+        }
+    }
+
+    private final String text;
+    private long deadline = NONE;
+    private long stepDeadline = NONE;
+    private int countdown = CHECK_INTERVAL;
+
+    public InterruptibleCharSequence(String text) {
+        this.text = text;
+    }
+
+    // Budget for everything matched against this input from now on; 0 or less means unlimited
+    public void startJob(long budgetNanos) {
+        deadline = budgetNanos > 0 ? System.nanoTime() + budgetNanos : NONE;
+        countdown = CHECK_INTERVAL;
+    }
+
+    // Budget for the next find(); 0 or less means only the job deadline applies
+    public void startStep(long budgetNanos) {
+        stepDeadline = budgetNanos > 0 ? System.nanoTime() + budgetNanos : NONE;
+        countdown = CHECK_INTERVAL;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (--countdown < 0) check();
+        return text.charAt(index);
+    }
+
+    private void check() {
+        countdown = CHECK_INTERVAL;
+        if (deadline == NONE && stepDeadline == NONE) return;
+        long now = System.nanoTime();
+        if (now > stepDeadline) throw new Timeout(true);
+        if (now > deadline) throw new Timeout(false);
+    }
+
+    @Override
+    public int length() {
+        return text.length();
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return text.subSequence(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,430 @@
+package data.scripts;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+// Finds which of a fixed set of literals occur in a line, in one Aho-Corasick pass.
+// Matching is case-insensitive (both sides lower-cased a char at a time), which can only let extra rules through,
+// never drop one. requiredLiterals works out, from a rule's regex, a set of literals at least one of which any
+// match must contain; rules whose literals are all absent from a line can't match it and are left out of the scan.
+public class LiteralPrefilter {
+    private static final int ASCII = 128;
+    // Whitespace and # mean something else in (?x) mode, so those patterns aren't analysed at all
+    private static final Pattern COMMENTS_FLAG = Pattern.compile("\\(\\?[a-wyz-]*x");
+
+    // Dense transitions for ASCII after failure links are folded in; other characters walk the failure chain
+    private final int[][] asciiNext;
+    private final Map<Long, Integer> otherEdges = new HashMap<>();
+    private final int[] fail;
+    private final int[][] outputs;
+    private final int literalCount;
+
+    public LiteralPrefilter(List<String> literals) {
+        this.literalCount = literals.size();
+
+        List<int[]> ascii = new ArrayList<>();
+        List<List<Integer>> out = new ArrayList<>();
+        ascii.add(new int[ASCII]);
+        Arrays.fill(ascii.get(0), -1);
+        out.add(new ArrayList<>());
+
+        for (int id = 0; id < literals.size(); id++) {
+            String literal = literals.get(id);
+            int node = 0;
+            for (int i = 0; i < literal.length(); i++) {
+                char c = Character.toLowerCase(literal.charAt(i));
+                int next = edge(ascii, node, c);
+                if (next < 0) {
+                    next = ascii.size();
+                    int[] row = new int[ASCII];
+                    Arrays.fill(row, -1);
+                    ascii.add(row);
+                    out.add(new ArrayList<>());
+                    if (c < ASCII) {
+                        ascii.get(node)[c] = next;
+                    } else {
+                        otherEdges.put(key(node, c), next);
+                    }
+                }
+                node = next;
+            }
+            out.get(node).add(id);
+        }
+
+        int nodes = ascii.size();
+        this.fail = new int[nodes];
+        Deque<Integer> queue = new ArrayDeque<>();
+        int[] root = ascii.get(0);
+        for (int c = 0; c < ASCII; c++) {
+            if (root[c] < 0) {
+                root[c] = 0;
+            } else {
+                fail[root[c]] = 0;
+                queue.add(root[c]);
+            }
+        }
+        for (Map.Entry<Long, Integer> entry : otherEdges.entrySet()) {
+            if ((entry.getKey() >>> 16) == 0) {
+                fail[entry.getValue()] = 0;
+                queue.add(entry.getValue());
+            }
+        }
+
+        // Breadth-first, so every failure target is finished before the nodes that point at it
+        Map<Integer, List<long[]>> otherByNode = new HashMap<>();
+        for (Map.Entry<Long, Integer> entry : otherEdges.entrySet()) {
+            otherByNode.computeIfAbsent((int) (entry.getKey() >>> 16), k -> new ArrayList<>())
+                .add(new long[] {entry.getKey() & 0xFFFF, entry.getValue()});
+        }
+        while (!queue.isEmpty()) {
+            int node = queue.poll();
+            out.get(node).addAll(out.get(fail[node]));
+
+            int[] row = ascii.get(node);
+            for (int c = 0; c < ASCII; c++) {
+                int child = row[c];
+                if (child < 0) {
+                    row[c] = ascii.get(fail[node])[c];
+                } else {
+                    fail[child] = ascii.get(fail[node])[c];
+                    queue.add(child);
+                }
+            }
+            for (long[] other : otherByNode.getOrDefault(node, Collections.emptyList())) {
+                int child = (int) other[1];
+                fail[child] = step(ascii, fail[node], (char) other[0]);
+                queue.add(child);
+            }
+        }
+
+        this.asciiNext = ascii.toArray(new int[0][]);
+        this.outputs = new int[nodes][];
+        for (int i = 0; i < nodes; i++) {
+            List<Integer> ids = new ArrayList<>(new LinkedHashSet<>(out.get(i)));
+            outputs[i] = ids.stream().mapToInt(Integer::intValue).toArray();
+        }
+    }
+
+    private int edge(List<int[]> ascii, int node, char c) {
+        if (c < ASCII) return ascii.get(node)[c];
+        Integer next = otherEdges.get(key(node, c));
+        return next != null ? next : -1;
+    }
+
+    // Transition while building, once the ASCII rows of every shallower node are complete
+    private int step(List<int[]> ascii, int node, char c) {
+        if (c < ASCII) return ascii.get(node)[c];
+        while (true) {
+            Integer next = otherEdges.get(key(node, c));
+            if (next != null) return next;
+            if (node == 0) return 0;
+            node = fail[node];
+        }
+    }
+
+    private static long key(int node, char c) {
+        return ((long) node << 16) | c;
+    }
+
+    // The case folding used on both sides of every comparison
+    public static String fold(String literal) {
+        char[] chars = literal.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    public int getLiteralCount() {
+        return literalCount;
+    }
+
+    // Ids of the literals that occur somewhere in text
+    public BitSet scan(CharSequence text) {
+        BitSet found = new BitSet(literalCount);
+        int node = 0;
+        for (int i = 0, n = text.length(); i < n; i++) {
+            char c = Character.toLowerCase(text.charAt(i));
+            if (c < ASCII) {
+                node = asciiNext[node][c];
+            } else {
+                while (true) {
+                    Integer next = otherEdges.get(key(node, c));
+                    if (next != null) {
+                        node = next;
+                        break;
+                    }
+                    if (node == 0) break;
+                    node = fail[node];
+                }
+            }
+            for (int id : outputs[node]) {
+                found.set(id);
+            }
+        }
+        return found;
+    }
+
+    // Literals of which every match of regex must contain at least one, or null if no such set could be proven.
+    // Deliberately conservative: anything it doesn't understand ends the current literal run or gives up.
+    public static String[] requiredLiterals(String regex) {
+        if (COMMENTS_FLAG.matcher(regex).find()) return null;
+        try {
+            Parser parser = new Parser(regex);
+            Set<String> literals = parser.alternation().required;
+            if (parser.pos != regex.length() || literals == null || literals.isEmpty()) return null;
+            return literals.toArray(new String[0]);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    // What a (sub)pattern says about its matches: required as above, and exact if it can only ever match one of a
+    // small set of fixed strings, so that literal text either side of a group like (INFO|WARN) can be joined onto it
+    private static final class Result {
+        final Set<String> required;
+        final Set<String> exact;
+
+        Result(Set<String> required, Set<String> exact) {
+            this.required = required;
+            this.exact = exact;
+        }
+    }
+
+    private static final class Parser {
+        private static final int MAX_EXACT = 64;
+
+        private final String regex;
+        int pos = 0;
+
+        Parser(String regex) {
+            this.regex = regex;
+        }
+
+        // Any branch may match, so every branch must contribute literals
+        Result alternation() {
+            Set<String> required = new LinkedHashSet<>();
+            Set<String> exact = new LinkedHashSet<>();
+            boolean provable = true, fixed = true;
+            while (true) {
+                Result branch = sequence();
+                if (branch.required == null) {
+                    provable = false;
+                } else {
+                    required.addAll(branch.required);
+                }
+                if (branch.exact == null) {
+                    fixed = false;
+                } else {
+                    exact.addAll(branch.exact);
+                }
+                if (pos < regex.length() && regex.charAt(pos) == '|') {
+                    pos++;
+                } else {
+                    break;
+                }
+            }
+            return new Result(provable ? required : null, fixed && exact.size() <= MAX_EXACT ? exact : null);
+        }
+
+        // Every required element of a sequence must occur, so the most selective one is enough
+        private Result sequence() {
+            Set<String> best = null;
+            // The strings the fixed text just before pos can be, joined across literal chars and exact groups
+            Set<String> run = Collections.singleton("");
+            boolean exact = true;
+            while (pos < regex.length() && regex.charAt(pos) != '|' && regex.charAt(pos) != ')') {
+                int literal = -1;
+                Result group = null;
+
+                char c = regex.charAt(pos);
+                if (c == '(') {
+                    pos++;
+                    boolean lookaround = false;
+                    if (pos < regex.length() && regex.charAt(pos) == '?') {
+                        pos++;
+                        char kind = regex.charAt(pos);
+                        if (kind == '=' || kind == '!') {
+                            lookaround = true;
+                            pos++;
+                        } else if (kind == '<' && (regex.charAt(pos + 1) == '=' || regex.charAt(pos + 1) == '!')) {
+                            lookaround = true;
+                            pos += 2;
+                        } else if (kind == '<') {
+                            pos = regex.indexOf('>', pos) + 1;
+                        } else if (kind == ':' || kind == '>') {
+                            pos++;
+                        } else {
+                            // Inline flags, either (?i) on their own or (?i:...)
+                            while (Character.isLetter(regex.charAt(pos)) || regex.charAt(pos) == '-') pos++;
+                            if (regex.charAt(pos) == ')') {
+                                pos++;
+                                continue;
+                            }
+                            pos++;
+                        }
+                    }
+                    Result inner = alternation();
+                    expect(')');
+                    if (!lookaround) group = inner;
+                } else if (c == '[') {
+                    skipClass();
+                } else if (c == '\\') {
+                    literal = escape();
+                } else if (c == '.' || c == '^' || c == '$') {
+                    pos++;
+                } else if (c == '*' || c == '+' || c == '?' || c == '{') {
+                    throw new IllegalStateException("dangling quantifier");
+                } else {
+                    literal = c;
+                    pos++;
+                }
+
+                int min = 1;
+                boolean repeats = false;
+                if (pos < regex.length()) {
+                    char q = regex.charAt(pos);
+                    if (q == '*' || q == '?') {
+                        min = 0;
+                        pos++;
+                    } else if (q == '+') {
+                        repeats = true;
+                        pos++;
+                    } else if (q == '{') {
+                        int close = regex.indexOf('}', pos);
+                        String[] bounds = regex.substring(pos + 1, close).split(",", -1);
+                        min = Integer.parseInt(bounds[0].trim());
+                        repeats = bounds.length > 1 || min > 1;
+                        pos = close + 1;
+                    }
+                    if (pos < regex.length() && (regex.charAt(pos) == '?' || regex.charAt(pos) == '+')
+                        && isQuantifier(regex.charAt(pos - 1))) {
+                        pos++;
+                    }
+                }
+
+                Set<String> fixed = literal >= 0 ? Collections.singleton(String.valueOf((char) literal))
+                    : group != null ? group.exact : null;
+                if (fixed != null && min >= 1) {
+                    Set<String> joined = join(run, fixed);
+                    if (joined == null) {
+                        best = better(best, run);
+                        joined = fixed;
+                        exact = false;
+                    }
+                    run = joined;
+                    if (repeats) {
+                        // Only the first repetition is certain to follow the text before it
+                        best = better(best, run);
+                        run = Collections.singleton("");
+                        exact = false;
+                    }
+                } else {
+                    best = better(best, run);
+                    run = Collections.singleton("");
+                    exact = false;
+                    if (group != null && min >= 1) best = better(best, group.required);
+                }
+            }
+            return new Result(better(best, run), exact ? run : null);
+        }
+
+        private static Set<String> join(Set<String> prefixes, Set<String> suffixes) {
+            if (prefixes.size() * suffixes.size() > MAX_EXACT) return null;
+            Set<String> joined = new LinkedHashSet<>();
+            for (String prefix : prefixes) {
+                for (String suffix : suffixes) {
+                    joined.add(prefix + suffix);
+                }
+            }
+            return joined;
+        }
+
+        private static boolean isQuantifier(char c) {
+            return c == '*' || c == '+' || c == '?' || c == '}';
+        }
+
+        // Prefers the set whose shortest literal is longest, since that one is rarest in practice.
+        // A set holding the empty string requires nothing and never wins.
+        private static Set<String> better(Set<String> a, Set<String> b) {
+            if (b == null || b.contains("")) return a;
+            if (a == null) return b;
+            int minA = a.stream().mapToInt(String::length).min().orElse(0);
+            int minB = b.stream().mapToInt(String::length).min().orElse(0);
+            if (minA != minB) return minA > minB ? a : b;
+            return a.size() <= b.size() ? a : b;
+        }
+
+        // A literal char for simple escapes, -1 for classes, anchors and anything else
+        private int escape() {
+            char c = regex.charAt(pos + 1);
+            pos += 2;
+            switch (c) {
+                case 't': return '\t';
+                case 'n': return '\n';
+                case 'r': return '\r';
+                case 'p':
+                case 'P':
+                    if (regex.charAt(pos) == '{') pos = regex.indexOf('}', pos) + 1; else pos++;
+                    return -1;
+                case 'x':
+                    if (regex.charAt(pos) == '{') pos = regex.indexOf('}', pos) + 1; else pos += 2;
+                    return -1;
+                case 'u':
+                    pos += 4;
+                    return -1;
+                case 'c':
+                    pos++;
+                    return -1;
+                case 'k':
+                    pos = regex.indexOf('>', pos) + 1;
+                    return -1;
+                case 'Q':
+                    int end = regex.indexOf("\\E", pos);
+                    pos = end < 0 ? regex.length() : end + 2;
+                    return -1;
+                case '0':
+                    while (pos < regex.length() && Character.isDigit(regex.charAt(pos))) pos++;
+                    return -1;
+                default:
+                    if (Character.isLetterOrDigit(c)) {
+                        while (Character.isDigit(c) && pos < regex.length() && Character.isDigit(regex.charAt(pos))) pos++;
+                        return -1;
+                    }
+                    return c;
+            }
+        }
+
+        private void skipClass() {
+            pos++;
+            if (regex.charAt(pos) == '^') pos++;
+            if (regex.charAt(pos) == ']') pos++;
+            int depth = 1;
+            while (depth > 0) {
+                char c = regex.charAt(pos);
+                if (c == '\\') {
+                    pos += 2;
+                    continue;
+                }
+                if (c == '[') depth++;
+                if (c == ']') depth--;
+                pos++;
+            }
+        }
+
+        private void expect(char c) {
+            if (regex.charAt(pos) != c) throw new IllegalStateException("expected " + c);
+            pos++;
+        }
+    }
+}
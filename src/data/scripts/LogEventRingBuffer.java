@@ -0,0 +1,242 @@
+package data.scripts;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.spi.LoggingEvent;
+
+// Bounded lock-free queue between the log4j threads and the console's drain thread.
+// Slots and sequence numbers are allocated once up front, so publishing an event allocates nothing.
+// Sequence-per-slot design (Vyukov); any thread may poll, which is what drop-oldest relies on.
+public class LogEventRingBuffer {
+    public enum OverflowPolicy {
+        BLOCK,
+        DROP_OLDEST,
+        DROP_NEWEST,
+        SAMPLE;
+
+        public static OverflowPolicy parse(String value) {
+            if (value == null) return DROP_OLDEST;
+            switch (value.trim().toLowerCase().replace('-', '_')) {
+                case "block":
+                    return BLOCK;
+                case "drop_newest":
+                    return DROP_NEWEST;
+                case "sample":
+                    return SAMPLE;
+                case "drop_oldest":
+                default:
+                    return DROP_OLDEST;
+            }
+        }
+    }
+
+    public interface EventHandler {
+        void onEvent(LoggingEvent event);
+    }
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<LoggingEvent> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private final OverflowPolicy policy;
+    private final int sampleRate;
+    private final AtomicLong overflowCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong publishedCount = new AtomicLong();
+    private final AtomicLong blockedCount = new AtomicLong();
+
+    private volatile Thread consumer;
+    private volatile boolean consumerParked = false;
+    private volatile boolean closed = false;
+
+    public LogEventRingBuffer(int requestedCapacity, OverflowPolicy policy, int sampleRate) {
+        int cap = 1;
+        while (cap < requestedCapacity && cap < (1 << 30)) {
+            cap <<= 1;
+        }
+        this.capacity = cap;
+        this.mask = cap - 1;
+        this.slots = new AtomicReferenceArray<>(cap);
+        this.sequences = new AtomicLongArray(cap);
+        for (int i = 0; i < cap; i++) {
+            sequences.set(i, i);
+        }
+        this.policy = policy;
+        this.sampleRate = Math.max(1, sampleRate);
+    }
+
+    public void setConsumer(Thread consumer) {
+        this.consumer = consumer;
+    }
+
+    public void publish(LoggingEvent event) {
+        if (closed) return;
+
+        if (!offer(event)) {
+            // The drain thread may log while handling an event; it must never wait on itself
+            OverflowPolicy effectivePolicy = Thread.currentThread() == consumer && policy == OverflowPolicy.BLOCK
+                ? OverflowPolicy.DROP_NEWEST
+                : policy;
+
+            switch (effectivePolicy) {
+                case BLOCK:
+                    blockedCount.incrementAndGet();
+                    while (!offer(event)) {
+                        if (closed) {
+                            droppedCount.incrementAndGet();
+                            return;
+                        }
+                        wakeConsumer();
+                        LockSupport.parkNanos(50_000L);
+                    }
+                    break;
+
+                case DROP_NEWEST:
+                    droppedCount.incrementAndGet();
+                    return;
+
+                case SAMPLE:
+                    // Keep one in every sampleRate overflowing events so a sustained burst still shows a trickle of new lines
+                    if (overflowCount.incrementAndGet() % sampleRate != 0) {
+                        droppedCount.incrementAndGet();
+                        return;
+                    }
+                    evictUntilOffered(event);
+                    break;
+
+                case DROP_OLDEST:
+                default:
+                    evictUntilOffered(event);
+                    break;
+            }
+        }
+
+        publishedCount.incrementAndGet();
+        if (consumerParked) {
+            wakeConsumer();
+        }
+    }
+
+    private void evictUntilOffered(LoggingEvent event) {
+        while (!offer(event)) {
+            if (poll() != null) {
+                droppedCount.incrementAndGet();
+            }
+        }
+    }
+
+    private boolean offer(LoggingEvent event) {
+        while (true) {
+            long pos = tail.get();
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    slots.set(index, event);
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                return false;
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    public LoggingEvent poll() {
+        while (true) {
+            long pos = head.get();
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - (pos + 1);
+
+            if (diff == 0) {
+                if (head.compareAndSet(pos, pos + 1)) {
+                    LoggingEvent event = slots.get(index);
+                    slots.set(index, null);
+                    sequences.set(index, pos + capacity);
+                    return event;
+                }
+            } else if (diff < 0) {
+                return null;
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    // Hands up to maxEvents queued events to the handler, returns how many were handled
+    public int drainTo(EventHandler handler, int maxEvents) {
+        int drained = 0;
+        LoggingEvent event;
+        while (drained < maxEvents && (event = poll()) != null) {
+            handler.onEvent(event);
+            drained++;
+        }
+        return drained;
+    }
+
+    // Parks the consumer until a producer signals or the timeout passes
+    public void awaitEvents(long timeoutNanos) {
+        consumerParked = true;
+        try {
+            if (isEmpty() && !closed) {
+                LockSupport.parkNanos(this, timeoutNanos);
+            }
+        } finally {
+            consumerParked = false;
+        }
+    }
+
+    private void wakeConsumer() {
+        Thread t = consumer;
+        if (t != null) {
+            LockSupport.unpark(t);
+        }
+    }
+
+    public boolean isEmpty() {
+        return head.get() >= tail.get();
+    }
+
+    public int size() {
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    public void close() {
+        closed = true;
+        wakeConsumer();
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getPublishedCount() {
+        return publishedCount.get();
+    }
+
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+}
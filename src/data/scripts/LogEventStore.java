@@ -0,0 +1,496 @@
+package data.scripts;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Priority;
+import org.apache.log4j.spi.LoggingEvent;
+import org.apache.log4j.spi.ThrowableInformation;
+
+import data.scripts.CustomConsoleWindow.TextSegment;
+
+// Retained log history, kept in fixed-size chunks so the oldest rows can be dropped a whole chunk at a time.
+// Each chunk stores its rows column by column: primitive timestamps and levels, dictionary ids for thread and
+// category names, and the message text (with any stack trace) packed into one shared char arena.
+// Rows are appended by the drain thread; readers take a snapshot of the chunk array and never see it change under them.
+public class LogEventStore {
+    public static final int CHUNK_ROWS = 1024;
+    // Longs in a bitmap with one bit per row of a chunk
+    public static final int ROW_WORDS = CHUNK_ROWS / 64;
+    private static final int CHUNK_MAX_CHARS = 1 << 19;
+    private static final int CHUNK_INITIAL_CHARS = 1 << 14;
+
+    // timestamp, level, thread id, category id, body start and body length
+    private static final int ROW_COLUMN_BYTES = 8 + 1 + 4 + 4 + 4 + 4;
+    // Rough cost of the TextSegment the window keeps for each row
+    private static final int ROW_SEGMENT_BYTES = 64;
+
+    public static final byte LEVEL_DEBUG = 0;
+    public static final byte LEVEL_INFO = 1;
+    public static final byte LEVEL_WARN = 2;
+    public static final byte LEVEL_ERROR = 3;
+    public static final byte LEVEL_FATAL = 4;
+    public static final int LEVEL_COUNT = 5;
+    private static final String[] LEVEL_NAMES = {"DEBUG", "INFO", "WARN", "ERROR", "FATAL"};
+
+    public static byte levelCode(Priority level) {
+        if (level == null) return LEVEL_INFO;
+        int value = level.toInt();
+        if (value >= Priority.FATAL_INT) return LEVEL_FATAL;
+        if (value >= Priority.ERROR_INT) return LEVEL_ERROR;
+        if (value >= Priority.WARN_INT) return LEVEL_WARN;
+        if (value >= Priority.INFO_INT) return LEVEL_INFO;
+        return LEVEL_DEBUG;
+    }
+
+    public static String levelName(byte code) {
+        return LEVEL_NAMES[code];
+    }
+
+    public static Level toLevel(byte code) {
+        switch (code) {
+            case LEVEL_DEBUG: return Level.DEBUG;
+            case LEVEL_WARN: return Level.WARN;
+            case LEVEL_ERROR: return Level.ERROR;
+            case LEVEL_FATAL: return Level.FATAL;
+            default: return Level.INFO;
+        }
+    }
+
+    // Interns repeated strings such as thread and logger names to small int ids
+    public static class Dictionary {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private volatile String[] values = new String[64];
+        private int size = 0;
+
+        public synchronized int intern(String value) {
+            if (value == null) value = "";
+            Integer id = ids.get(value);
+            if (id != null) return id;
+
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size] = value;
+            ids.put(value, size);
+            return size++;
+        }
+
+        public String get(int id) {
+            return values[id];
+        }
+
+        public synchronized int size() {
+            return size;
+        }
+    }
+
+    public static class Chunk {
+        public final int firstRow;
+        final long[] timestamps = new long[CHUNK_ROWS];
+        final byte[] levels = new byte[CHUNK_ROWS];
+        final int[] threadIds = new int[CHUNK_ROWS];
+        final int[] categoryIds = new int[CHUNK_ROWS];
+        final int[] bodyStarts = new int[CHUNK_ROWS];
+        final int[] bodyLengths = new int[CHUNK_ROWS];
+        char[] arena = new char[CHUNK_INITIAL_CHARS];
+        int arenaLength = 0;
+
+        // lineOffsets[i] is the number of display lines before row i within this chunk
+        final int[] lineOffsets = new int[CHUNK_ROWS + 1];
+        int maxLineLength = 0;
+
+        final TextSegment[] segments = new TextSegment[CHUNK_ROWS];
+        volatile int size = 0;
+        volatile int committed = 0;
+        long bytes = 0;
+
+        // Rows by level, category id and thread id, for the filter view
+        final long[][] levelRows = new long[LEVEL_COUNT][ROW_WORDS];
+        final Map<Integer, long[]> categoryRows = new HashMap<>();
+        final Map<Integer, long[]> threadRows = new HashMap<>();
+
+        // Trigrams of the row bodies for search, or null when the index is turned off
+        final TrigramIndex index;
+        // Set once a newer chunk takes the appends, after which the index never changes again
+        volatile boolean sealed = false;
+
+        Chunk(int firstRow, boolean indexed) {
+            this.firstRow = firstRow;
+            this.index = indexed ? new TrigramIndex() : null;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public long getTimestamp(int index) {
+            return timestamps[index];
+        }
+
+        public byte getLevel(int index) {
+            return levels[index];
+        }
+
+        public int getThreadId(int index) {
+            return threadIds[index];
+        }
+
+        public int getCategoryId(int index) {
+            return categoryIds[index];
+        }
+
+        // The message followed by a newline and any stack trace lines, each newline-terminated
+        public String getBody(int index) {
+            return new String(arena, bodyStarts[index], bodyLengths[index]);
+        }
+
+        public void appendBody(int index, StringBuilder sb) {
+            sb.append(arena, bodyStarts[index], bodyLengths[index]);
+        }
+
+        public int getBodyLength(int index) {
+            return bodyLengths[index];
+        }
+
+        // Whether the body contains text, folding case as TrigramIndex does; text must be folded already
+        public boolean bodyContainsFolded(int index, char[] text) {
+            int start = bodyStarts[index];
+            int last = start + bodyLengths[index] - text.length;
+            for (int i = start; i <= last; i++) {
+                int j = 0;
+                while (j < text.length && TrigramIndex.fold(arena[i + j]) == text[j]) j++;
+                if (j == text.length) return true;
+            }
+            return false;
+        }
+
+        // Whether the body starts with text[from..], folding case as TrigramIndex does; text must be folded already
+        public boolean bodyStartsWithFolded(int index, char[] text, int from) {
+            int length = text.length - from;
+            if (length > bodyLengths[index]) return false;
+            int start = bodyStarts[index];
+            for (int i = 0; i < length; i++) {
+                if (TrigramIndex.fold(arena[start + i]) != text[from + i]) return false;
+            }
+            return true;
+        }
+
+        public TextSegment getSegment(int index) {
+            return segments[index];
+        }
+
+        public void setSegment(int index, TextSegment segment) {
+            segments[index] = segment;
+            if (index >= committed) {
+                committed = index + 1;
+            }
+        }
+
+        // Rows that have been handed to the view, always a prefix of the chunk
+        public int committedSize() {
+            return committed;
+        }
+
+        public int getLineOffset(int index) {
+            return lineOffsets[index];
+        }
+
+        public int getLineCount(int index) {
+            return lineOffsets[index + 1] - lineOffsets[index];
+        }
+
+        public int getMaxLineLength() {
+            return maxLineLength;
+        }
+
+        boolean isFull() {
+            return size == CHUNK_ROWS || arenaLength >= CHUNK_MAX_CHARS;
+        }
+
+        boolean isCommitted() {
+            int n = size;
+            return n > 0 && segments[n - 1] != null;
+        }
+
+        private void appendChars(String text) {
+            int length = text.length();
+            ensureArena(length);
+            text.getChars(0, length, arena, arenaLength);
+            arenaLength += length;
+        }
+
+        private void appendChar(char c) {
+            ensureArena(1);
+            arena[arenaLength++] = c;
+        }
+
+        private void ensureArena(int extra) {
+            if (arenaLength + extra > arena.length) {
+                arena = Arrays.copyOf(arena, Math.max(arena.length * 2, arenaLength + extra));
+            }
+        }
+    }
+
+    private final boolean indexed;
+    private final Dictionary threadNames = new Dictionary();
+    private final Dictionary categoryNames = new Dictionary();
+
+    private volatile Chunk[] chunks = new Chunk[0];
+    private int nextRow = 0;
+    private int retainedRows = 0;
+    private long retainedBytes = 0;
+    private long trimmedRows = 0;
+    private long trimmedChunks = 0;
+
+    public LogEventStore() {
+        this(ExternalConsoleSettings.isSearchIndexEnabled());
+    }
+
+    public LogEventStore(boolean indexed) {
+        this.indexed = indexed;
+    }
+
+    public boolean isIndexed() {
+        return indexed;
+    }
+
+    public synchronized Chunk append(LoggingEvent event) {
+        Chunk tail = chunks.length == 0 ? null : chunks[chunks.length - 1];
+        if (tail == null || tail.isFull()) {
+            if (tail != null) tail.sealed = true;
+            tail = new Chunk(nextRow, indexed);
+            Chunk[] grown = new Chunk[chunks.length + 1];
+            System.arraycopy(chunks, 0, grown, 0, chunks.length);
+            grown[chunks.length] = tail;
+            chunks = grown;
+        }
+
+        int row = tail.size;
+        int arenaBefore = tail.arena.length;
+        int bodyStart = tail.arenaLength;
+
+        String message = event.getRenderedMessage();
+        tail.appendChars(message != null ? message : "null");
+        tail.appendChar('\n');
+
+        ThrowableInformation throwableInfo = event.getThrowableInformation();
+        if (throwableInfo != null) {
+            String[] lines = throwableInfo.getThrowableStrRep();
+            if (lines != null) {
+                for (String line : lines) {
+                    tail.appendChars(line);
+                    tail.appendChar('\n');
+                }
+            }
+        }
+
+        tail.timestamps[row] = event.timeStamp;
+        tail.levels[row] = levelCode(event.getLevel());
+        tail.threadIds[row] = threadNames.intern(event.getThreadName());
+        tail.categoryIds[row] = categoryNames.intern(event.getLoggerName());
+        tail.bodyStarts[row] = bodyStart;
+        tail.bodyLengths[row] = tail.arenaLength - bodyStart;
+        if (tail.index != null) {
+            tail.index.addRow(row, tail.arena, bodyStart, tail.arenaLength - bodyStart);
+        }
+        long bit = 1L << row;
+        tail.levelRows[tail.levels[row]][row >>> 6] |= bit;
+        tail.categoryRows.computeIfAbsent(tail.categoryIds[row], id -> new long[ROW_WORDS])[row >>> 6] |= bit;
+        tail.threadRows.computeIfAbsent(tail.threadIds[row], id -> new long[ROW_WORDS])[row >>> 6] |= bit;
+
+        int lines = 0;
+        int lineStart = bodyStart;
+        char[] arena = tail.arena;
+        for (int i = bodyStart; i < tail.arenaLength; i++) {
+            if (arena[i] == '\n') {
+                lines++;
+                tail.maxLineLength = Math.max(tail.maxLineLength, i - lineStart);
+                lineStart = i + 1;
+            }
+        }
+        tail.lineOffsets[row + 1] = tail.lineOffsets[row] + lines;
+
+        long bytes = ROW_COLUMN_BYTES + ROW_SEGMENT_BYTES + (long) (tail.arena.length - arenaBefore) * 2;
+        if (row == 0) {
+            bytes += (long) arenaBefore * 2;
+        }
+        tail.bytes += bytes;
+        tail.size = row + 1;
+
+        nextRow++;
+        retainedRows++;
+        retainedBytes += bytes;
+        return tail;
+    }
+
+    // Drops the oldest chunk if the retained rows or bytes go over budget without it; a limit of 0 means unlimited.
+    // The active tail chunk and chunks whose rows have not reached the document yet are never dropped.
+    public synchronized Chunk trimHead(int maxRows, long maxBytes) {
+        if (chunks.length < 2) return null;
+
+        Chunk head = chunks[0];
+        boolean overRows = maxRows > 0 && retainedRows - head.size >= maxRows;
+        boolean overBytes = maxBytes > 0 && retainedBytes > maxBytes;
+        if (!(overRows || overBytes) || !head.isCommitted()) return null;
+
+        Chunk[] shrunk = new Chunk[chunks.length - 1];
+        System.arraycopy(chunks, 1, shrunk, 0, shrunk.length);
+        chunks = shrunk;
+
+        retainedRows -= head.size;
+        retainedBytes -= head.bytes;
+        trimmedRows += head.size;
+        trimmedChunks++;
+        return head;
+    }
+
+    public synchronized void clear() {
+        chunks = new Chunk[0];
+        retainedRows = 0;
+        retainedBytes = 0;
+    }
+
+    public Chunk[] snapshot() {
+        return chunks;
+    }
+
+    // ORs into rows (one bit per row of the chunk) the rows whose body may contain any of the folded literals
+    public void bodyCandidates(Chunk chunk, char[][] literals, long[] rows) {
+        readChunk(chunk, c -> {
+            for (char[] literal : literals) c.index.addCandidates(literal, rows);
+        });
+    }
+
+    // For reading a chunk's index or row bitmaps: a sealed chunk's never change again and are read as they are,
+    // the tail's are still being appended to, so they are read under the lock
+    public void readChunk(Chunk chunk, Consumer<Chunk> reader) {
+        if (chunk.sealed) {
+            reader.accept(chunk);
+            return;
+        }
+        synchronized (this) {
+            reader.accept(chunk);
+        }
+    }
+
+    public String getThreadName(int id) {
+        return threadNames.get(id);
+    }
+
+    public String getCategoryName(int id) {
+        return categoryNames.get(id);
+    }
+
+    public Dictionary getThreadNames() {
+        return threadNames;
+    }
+
+    public Dictionary getCategoryNames() {
+        return categoryNames;
+    }
+
+    // Chunk holding a row number (Chunk.firstRow + index), or null if that row is trimmed or not appended yet
+    public static Chunk chunkForRow(Chunk[] snapshot, int row) {
+        int lo = 0, hi = snapshot.length - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            Chunk chunk = snapshot[mid];
+            if (row < chunk.firstRow) {
+                hi = mid - 1;
+            } else if (row >= chunk.firstRow + chunk.size) {
+                lo = mid + 1;
+            } else {
+                return chunk;
+            }
+        }
+        return null;
+    }
+
+    // A logical position is a row number shifted past the longest possible row, plus an offset into the row as
+    // displayed. It depends on neither the column layout nor trimming, so hits and selections survive both.
+    private static final int POSITION_ROW_SHIFT = 32;
+
+    public static long rowPosition(int row) {
+        return (long) row << POSITION_ROW_SHIFT;
+    }
+
+    public static int positionRow(long position) {
+        return (int) (position >>> POSITION_ROW_SHIFT);
+    }
+
+    public static int positionOffset(long position) {
+        return (int) (position & ((1L << POSITION_ROW_SHIFT) - 1));
+    }
+
+    // Row number of the retained row whose text pane document text contains a document position
+    // (TextSegment.documentStart coordinates), or -1
+    public int findRow(long documentPosition) {
+        Chunk[] snapshot = chunks;
+        int lo = 0, hi = snapshot.length - 1, chunkIndex = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            TextSegment first = snapshot[mid].segments[0];
+            if (first != null && first.documentStart <= documentPosition) {
+                chunkIndex = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (chunkIndex < 0) return -1;
+
+        Chunk chunk = snapshot[chunkIndex];
+        lo = 0;
+        hi = chunk.committedSize() - 1;
+        int row = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            TextSegment segment = chunk.segments[mid];
+            if (segment != null && segment.documentStart <= documentPosition) {
+                row = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return row < 0 ? -1 : chunk.firstRow + row;
+    }
+
+    public synchronized int getRetainedRows() {
+        return retainedRows;
+    }
+
+    public synchronized long getRetainedBytes() {
+        return retainedBytes;
+    }
+
+    public synchronized String report() {
+        return "retained rows: " + retainedRows
+            + "\nretained chunks: " + chunks.length
+            + "\nestimated retained bytes: " + (retainedBytes / 1024) + " KB"
+            + (retainedRows > 0 ? "\nbytes per row: " + (retainedBytes / retainedRows) : "")
+            + "\ndistinct threads: " + threadNames.size()
+            + "\ndistinct categories: " + categoryNames.size()
+            + "\ntrimmed rows: " + trimmedRows
+            + "\ntrimmed chunks: " + trimmedChunks
+            + "\n" + indexReport();
+    }
+
+    private String indexReport() {
+        if (!indexed) return "search index: off";
+        long bytes = 0, trigrams = 0, unindexed = 0;
+        for (Chunk chunk : chunks) {
+            bytes += chunk.index.memoryBytes();
+            trigrams += chunk.index.getTrigramCount();
+            unindexed += chunk.index.getUnindexedRows();
+        }
+        return "search index: " + (bytes / 1024) + " KB"
+            + (retainedRows > 0 ? ", " + (bytes / retainedRows) + " bytes per row" : "")
+            + "\nindexed trigrams (summed over chunks): " + trigrams
+            + "\nrows too long to index: " + unindexed;
+    }
+}
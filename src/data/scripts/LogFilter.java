@@ -0,0 +1,123 @@
+package data.scripts;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+
+// What the filter bar asks for: a minimum level, a category prefix, part of a thread name and text the body must
+// contain, all case-insensitive, every one that is set having to hold. A chunk is filtered by combining its per-level,
+// per-category and per-thread row bitmaps (and the trigram index for the text), so only rows that can match are
+// looked at. Category and thread names are matched once per id, and new ids are picked up as the dictionaries grow.
+// EDT only.
+public final class LogFilter {
+    private final byte minLevel;
+    private final String category;
+    private final String thread;
+    private final char[] text;
+
+    private final BitSet categoryIds = new BitSet();
+    private final BitSet threadIds = new BitSet();
+    private int categoriesResolved = 0;
+    private int threadsResolved = 0;
+
+    // Empty strings and a minimum of LEVEL_DEBUG leave that part unset
+    public LogFilter(byte minLevel, String category, String thread, String text) {
+        this.minLevel = minLevel;
+        this.category = category == null || category.isEmpty() ? null : category;
+        this.thread = thread == null || thread.isEmpty() ? null : fold(thread);
+        this.text = text == null || text.isEmpty() ? null : fold(text).toCharArray();
+    }
+
+    public boolean isEmpty() {
+        return minLevel <= LogEventStore.LEVEL_DEBUG && category == null && thread == null && text == null;
+    }
+
+    private static String fold(String value) {
+        char[] folded = value.toCharArray();
+        for (int i = 0; i < folded.length; i++) folded[i] = TrigramIndex.fold(folded[i]);
+        return new String(folded);
+    }
+
+    // Matches names the dictionaries gained since the last call
+    private void resolve(LogEventStore store) {
+        if (category != null) {
+            LogEventStore.Dictionary names = store.getCategoryNames();
+            for (int n = names.size(); categoriesResolved < n; categoriesResolved++) {
+                String name = names.get(categoriesResolved);
+                if (name.regionMatches(true, 0, category, 0, category.length())) categoryIds.set(categoriesResolved);
+            }
+        }
+        if (thread != null) {
+            LogEventStore.Dictionary names = store.getThreadNames();
+            for (int n = names.size(); threadsResolved < n; threadsResolved++) {
+                if (fold(names.get(threadsResolved)).contains(thread)) threadIds.set(threadsResolved);
+            }
+        }
+    }
+
+    // Sets in rows (one bit per row of the chunk) exactly the rows below limit that pass the filter
+    public void select(LogEventStore store, LogEventStore.Chunk chunk, int limit, long[] rows) {
+        resolve(store);
+        Arrays.fill(rows, 0);
+        for (int w = 0; w < limit >>> 6; w++) rows[w] = -1L;
+        if ((limit & 63) != 0) rows[limit >>> 6] = (1L << limit) - 1;
+
+        long[] any = new long[LogEventStore.ROW_WORDS];
+        store.readChunk(chunk, c -> {
+            if (minLevel > LogEventStore.LEVEL_DEBUG) {
+                Arrays.fill(any, 0);
+                for (int level = minLevel; level < LogEventStore.LEVEL_COUNT; level++) or(any, c.levelRows[level]);
+                and(rows, any);
+            }
+            if (category != null) and(rows, union(c.categoryRows, categoryIds, any));
+            if (thread != null) and(rows, union(c.threadRows, threadIds, any));
+            if (text != null && text.length >= 3 && c.index != null) {
+                Arrays.fill(any, 0);
+                c.index.addCandidates(text, any);
+                and(rows, any);
+            }
+        });
+
+        if (text == null) return;
+        for (int w = 0; w < rows.length; w++) {
+            for (long bits = rows[w]; bits != 0; bits &= bits - 1) {
+                int row = (w << 6) + Long.numberOfTrailingZeros(bits);
+                if (!chunk.bodyContainsFolded(row, text)) rows[w] &= ~(1L << row);
+            }
+        }
+    }
+
+    // Whether one row passes; for rows that arrive after a chunk was selected
+    public boolean matches(LogEventStore store, LogEventStore.Chunk chunk, int row) {
+        resolve(store);
+        if (chunk.getLevel(row) < minLevel) return false;
+        if (category != null && !categoryIds.get(chunk.getCategoryId(row))) return false;
+        if (thread != null && !threadIds.get(chunk.getThreadId(row))) return false;
+        return text == null || chunk.bodyContainsFolded(row, text);
+    }
+
+    private static long[] union(Map<Integer, long[]> rowsById, BitSet ids, long[] out) {
+        Arrays.fill(out, 0);
+        for (Map.Entry<Integer, long[]> entry : rowsById.entrySet()) {
+            if (ids.get(entry.getKey())) or(out, entry.getValue());
+        }
+        return out;
+    }
+
+    private static void or(long[] into, long[] rows) {
+        for (int w = 0; w < into.length; w++) into[w] |= rows[w];
+    }
+
+    private static void and(long[] into, long[] rows) {
+        for (int w = 0; w < into.length; w++) into[w] &= rows[w];
+    }
+
+    public String describe() {
+        StringBuilder sb = new StringBuilder();
+        if (minLevel > LogEventStore.LEVEL_DEBUG) sb.append(LogEventStore.levelName(minLevel)).append("+ ");
+        if (category != null) sb.append("category ").append(category).append("* ");
+        if (thread != null) sb.append("thread *").append(thread).append("* ");
+        if (text != null) sb.append("text \"").append(text).append("\" ");
+        return sb.toString().trim();
+    }
+}
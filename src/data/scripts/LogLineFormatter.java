@@ -0,0 +1,100 @@
+package data.scripts;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Set;
+
+// Formats console rows for the four supported prefix columns, in place of log4j's PatternLayout, which runs its
+// converter chain and builds new strings for every event. Rows are written straight from LogEventStore's columns
+// into the caller's buffer, and the HH:mm:ss text is cached for the current second, so a row costs a few appends.
+// Output matches "%d{HH:mm:ss} [%t] %-5p %c - %m%n" minus the hidden columns, with '\n' line ends throughout.
+// Immutable apart from the time cache; a column toggle swaps in a new formatter.
+public final class LogLineFormatter {
+    public static final String TIME = "%d{HH:mm:ss}";
+    public static final String THREAD = "[%t]";
+    public static final String LEVEL = "%-5p";
+    public static final String CATEGORY = "%c";
+    // Display order of the prefix columns
+    public static final String[] COLUMNS = {TIME, THREAD, LEVEL, CATEGORY};
+
+    public static final int TIME_WIDTH = 8;
+    public static final int LEVEL_WIDTH = 5;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    private final LogEventStore store;
+    private final boolean time, thread, level, category;
+
+    // Published whole so the drain thread and the EDT can share it without locking
+    private static final class CachedSecond {
+        final long second;
+        final String text;
+
+        CachedSecond(long second, String text) {
+            this.second = second;
+            this.text = text;
+        }
+    }
+
+    private volatile CachedSecond cachedSecond = new CachedSecond(Long.MIN_VALUE, "");
+
+    public LogLineFormatter(LogEventStore store, Set<String> columns) {
+        this.store = store;
+        this.time = columns.contains(TIME);
+        this.thread = columns.contains(THREAD);
+        this.level = columns.contains(LEVEL);
+        this.category = columns.contains(CATEGORY);
+    }
+
+    public boolean shows(String column) {
+        switch (column) {
+            case TIME: return time;
+            case THREAD: return thread;
+            case LEVEL: return level;
+            case CATEGORY: return category;
+            default: return false;
+        }
+    }
+
+    // The prefix columns, the "- " separator and the body (message plus any stack trace) of a stored row
+    public void format(LogEventStore.Chunk chunk, int index, StringBuilder sb) {
+        appendPrefix(chunk, index, sb);
+        chunk.appendBody(index, sb);
+    }
+
+    public void appendPrefix(LogEventStore.Chunk chunk, int index, StringBuilder sb) {
+        appendPrefix(chunk.getTimestamp(index), chunk.getThreadId(index), chunk.getLevel(index), chunk.getCategoryId(index), sb);
+    }
+
+    public void appendPrefix(long timestamp, int threadId, byte levelCode, int categoryId, StringBuilder sb) {
+        if (time) {
+            appendTime(timestamp, sb);
+            sb.append(' ');
+        }
+        if (thread) {
+            sb.append('[').append(store.getThreadName(threadId)).append("] ");
+        }
+        if (level) {
+            String name = LogEventStore.levelName(levelCode);
+            sb.append(name);
+            for (int i = name.length(); i <= LEVEL_WIDTH; i++) {
+                sb.append(' ');
+            }
+        }
+        if (category) {
+            sb.append(store.getCategoryName(categoryId)).append(' ');
+        }
+        sb.append("- ");
+    }
+
+    private void appendTime(long timestamp, StringBuilder sb) {
+        long second = Math.floorDiv(timestamp, 1000L);
+        CachedSecond cached = cachedSecond;
+        if (cached.second != second) {
+            cached = new CachedSecond(second, TIME_FORMAT.format(Instant.ofEpochMilli(timestamp)));
+            cachedSecond = cached;
+        }
+        sb.append(cached.text);
+    }
+}
@@ -0,0 +1,709 @@
+package data.scripts;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Toolkit;
+import java.awt.datatransfer.StringSelection;
+import java.awt.event.ActionEvent;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.swing.AbstractAction;
+import javax.swing.JComponent;
+import javax.swing.JViewport;
+import javax.swing.KeyStroke;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+import javax.swing.text.Style;
+import javax.swing.text.StyleConstants;
+
+import data.scripts.CustomConsoleWindow.TextSegment;
+
+// Log view that paints only the lines inside the visible rectangle, reading rows straight from the LogEventStore.
+// Every display line has the same height, so finding the line under a pixel is a division plus a binary search over chunks.
+// Positions (selection, search matches) are LogEventStore.rowPosition coordinates, which no layout change moves.
+// With a LogFilter set, the view shows a projection over the store instead: per chunk, the rows that pass and the
+// display line each starts on. A chunk's projection is built once from its row bitmaps and then only extended as
+// new rows commit, so setting, changing or clearing a filter never touches the document or the store.
+public class LogViewport extends JComponent implements Scrollable {
+    private static final int TAB_SIZE = 4;
+    private static final int INSET_X = 5;
+    private static final int INSET_Y = 2;
+    // Room for the time, thread, level and category columns, which are not part of the body's line lengths
+    private static final int PREFIX_ALLOWANCE = 80;
+    private static final Color SELECTION_COLOR = new Color(38, 79, 120);
+
+    private final CustomConsoleWindow console;
+    private final LogEventStore store;
+
+    private Font plainFont, boldFont, italicFont, boldItalicFont;
+    private int lineHeight, charWidth, ascent;
+
+    private long anchor = -1;
+    private long caret = -1;
+
+    private SearchMatches searchMatches = new SearchMatches();
+    private Color searchColor = new Color(255, 255, 0, 100);
+
+    private final StringBuilder rowText = new StringBuilder();
+    private char[] lineChars = new char[256];
+    private int[] lineColumns = new int[257];
+
+    private LogFilter filter;
+    private final Map<LogEventStore.Chunk, ChunkView> views = new IdentityHashMap<>();
+    private final long[] selectedRows = new long[LogEventStore.ROW_WORDS];
+
+    // The rows of one chunk that pass the filter, in order, and the display lines before each of them
+    private static class ChunkView {
+        int[] rows = new int[16];
+        int[] lineOffsets = new int[17];
+        int count;
+        // Committed rows the filter has been applied to
+        int evaluated;
+    }
+
+    // Chunk snapshot plus the first display line of each chunk, rebuilt for every paint or lookup. Rows are
+    // addressed by their index among the rows shown, which is the chunk row itself when there is no filter.
+    private static class Lines {
+        LogEventStore.Chunk[] chunks;
+        ChunkView[] views;
+        int[] firstLine;
+        int total;
+
+        int shownRows(int chunkIndex) {
+            return views == null ? chunks[chunkIndex].committedSize() : views[chunkIndex].count;
+        }
+
+        int row(int chunkIndex, int shown) {
+            return views == null ? shown : views[chunkIndex].rows[shown];
+        }
+
+        int lineOffset(int chunkIndex, int shown) {
+            return views == null ? chunks[chunkIndex].getLineOffset(shown) : views[chunkIndex].lineOffsets[shown];
+        }
+    }
+
+    private static class RowRef {
+        LogEventStore.Chunk chunk;
+        int chunkIndex;
+        int shown;
+        int row;
+        int firstLine;
+    }
+
+    public LogViewport(CustomConsoleWindow console, LogEventStore store, Font font) {
+        this.console = console;
+        this.store = store;
+        setFont(font);
+        setOpaque(true);
+        setFocusable(true);
+        setAutoscrolls(true);
+
+        MouseAdapter mouse = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                if (e.getButton() != MouseEvent.BUTTON1) return;
+                requestFocusInWindow();
+                long position = positionAt(e.getPoint());
+                if (position < 0) return;
+                if (!e.isShiftDown() || anchor < 0) {
+                    anchor = position;
+                }
+                caret = position;
+                repaint();
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                if (anchor < 0) return;
+                long position = positionAt(e.getPoint());
+                if (position < 0) return;
+                caret = position;
+                scrollRectToVisible(new Rectangle(e.getX(), e.getY(), 1, 1));
+                repaint();
+            }
+        };
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
+
+        getInputMap(WHEN_FOCUSED).put(KeyStroke.getKeyStroke(KeyEvent.VK_C, InputEvent.CTRL_DOWN_MASK), "copy");
+        getActionMap().put("copy", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                copy();
+            }
+        });
+        getInputMap(WHEN_FOCUSED).put(KeyStroke.getKeyStroke(KeyEvent.VK_A, InputEvent.CTRL_DOWN_MASK), "selectAll");
+        getActionMap().put("selectAll", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                selectAll();
+            }
+        });
+    }
+
+    @Override
+    public void setFont(Font font) {
+        super.setFont(font);
+        plainFont = font;
+        boldFont = font.deriveFont(Font.BOLD);
+        italicFont = font.deriveFont(Font.ITALIC);
+        boldItalicFont = font.deriveFont(Font.BOLD | Font.ITALIC);
+
+        FontMetrics metrics = getFontMetrics(font);
+        lineHeight = metrics.getHeight();
+        charWidth = Math.max(1, metrics.charWidth('m'));
+        ascent = metrics.getAscent();
+        revalidate();
+        repaint();
+    }
+
+    public void setSearchColor(Color color) {
+        this.searchColor = color;
+    }
+
+    // Called on the EDT after a commit tick has handed new rows to the view
+    public void rowsCommitted() {
+        revalidate();
+        repaint();
+    }
+
+    // Shared with the window, which repaints after changing it
+    public void setSearchMatches(SearchMatches matches) {
+        this.searchMatches = matches;
+        repaint();
+    }
+
+    // Shows only the rows that pass filter, or every row for null or an empty filter
+    public void setFilter(LogFilter filter) {
+        this.filter = filter == null || filter.isEmpty() ? null : filter;
+        views.clear();
+        revalidate();
+        repaint();
+    }
+
+    public LogFilter getFilter() {
+        return filter;
+    }
+
+    // Rows the filter currently shows, or -1 without a filter
+    public int getShownRows() {
+        if (filter == null) return -1;
+        Lines lines = lines();
+        int shown = 0;
+        for (ChunkView view : lines.views) shown += view.count;
+        return shown;
+    }
+
+    public void clearSelection() {
+        anchor = caret = -1;
+        repaint();
+    }
+
+    public void select(long position, int length) {
+        anchor = position;
+        caret = position + length;
+
+        Lines lines = lines();
+        RowRef ref = locatePosition(lines, position);
+        if (ref != null) {
+            String text = rowText(ref.chunk, ref.row);
+            // A position in a row the filter hides is clamped to a neighboring row that is shown
+            int offset = (int) Math.max(0, Math.min(text.length(), position - rowStart(ref.chunk, ref.row)));
+
+            int line = ref.firstLine;
+            int lineStart = 0;
+            for (int i = 0; i < offset; i++) {
+                if (text.charAt(i) == '\n') {
+                    line++;
+                    lineStart = i + 1;
+                }
+            }
+            int column = displayColumn(text, lineStart, offset);
+            scrollRectToVisible(new Rectangle(INSET_X + column * charWidth, INSET_Y + line * lineHeight,
+                Math.max(1, length) * charWidth, lineHeight));
+        }
+        repaint();
+    }
+
+    public void selectAll() {
+        Lines lines = lines();
+        if (lines.total == 0) return;
+
+        RowRef first = locateLine(lines, 0);
+        RowRef last = locateLine(lines, lines.total - 1);
+        if (first == null || last == null) return;
+
+        anchor = rowStart(first.chunk, first.row);
+        caret = rowStart(last.chunk, last.row) + rowText(last.chunk, last.row).length();
+        repaint();
+    }
+
+    public void copy() {
+        String text = getSelectedText();
+        if (text == null || text.isEmpty()) return;
+        Toolkit.getDefaultToolkit().getSystemClipboard().setContents(new StringSelection(text), null);
+    }
+
+    public String getSelectedText() {
+        if (anchor < 0 || caret < 0 || anchor == caret) return null;
+        long start = Math.min(anchor, caret);
+        long end = Math.max(anchor, caret);
+
+        Lines lines = lines();
+        RowRef ref = locatePosition(lines, start);
+        if (ref == null) return null;
+
+        StringBuilder sb = new StringBuilder();
+        int chunkIndex = ref.chunkIndex;
+        int shown = ref.shown;
+        while (chunkIndex < lines.chunks.length) {
+            LogEventStore.Chunk chunk = lines.chunks[chunkIndex];
+            for (; shown < lines.shownRows(chunkIndex); shown++) {
+                int row = lines.row(chunkIndex, shown);
+                TextSegment segment = chunk.getSegment(row);
+                if (segment == null) continue;
+                long rowStart = rowStart(chunk, row);
+                if (rowStart >= end) return sb.toString();
+
+                String text = rowText(chunk, row);
+                int from = (int) Math.max(0, start - rowStart);
+                int to = (int) Math.min(text.length(), end - rowStart);
+                if (from < to) {
+                    sb.append(text, from, to);
+                }
+            }
+            chunkIndex++;
+            shown = 0;
+        }
+        return sb.toString();
+    }
+
+    public void scrollToBottom() {
+        if (!(getParent() instanceof JViewport)) return;
+        JViewport viewport = (JViewport) getParent();
+        if (viewport.getParent() != null) {
+            viewport.getParent().validate();
+        }
+        int y = Math.max(0, getPreferredSize().height - viewport.getExtentSize().height);
+        viewport.setViewPosition(new Point(0, y));
+    }
+
+    // Row numbers (Chunk.firstRow + index) of the first and last rows in view, or null if nothing is shown
+    public int[] visibleRows() {
+        Lines lines = lines();
+        if (lines.total == 0) return null;
+        Rectangle view = getVisibleRect();
+        int firstLine = Math.max(0, Math.min(lines.total - 1, (view.y - INSET_Y) / lineHeight));
+        int lastLine = Math.max(firstLine, Math.min(lines.total - 1, (view.y + view.height - INSET_Y) / lineHeight));
+        RowRef first = locateLine(lines, firstLine);
+        RowRef last = locateLine(lines, lastLine);
+        if (first == null || last == null) return null;
+        return new int[] {first.chunk.firstRow + first.row, last.chunk.firstRow + last.row};
+    }
+
+    private Lines lines() {
+        Lines lines = new Lines();
+        lines.chunks = store.snapshot();
+        lines.firstLine = new int[lines.chunks.length + 1];
+        if (filter != null) {
+            // Chunks trimmed or cleared from the store take their projections with them
+            if (views.size() > lines.chunks.length) views.keySet().retainAll(Arrays.asList(lines.chunks));
+            lines.views = new ChunkView[lines.chunks.length];
+        }
+        for (int i = 0; i < lines.chunks.length; i++) {
+            LogEventStore.Chunk chunk = lines.chunks[i];
+            int chunkLines;
+            if (lines.views != null) {
+                ChunkView view = view(chunk);
+                lines.views[i] = view;
+                chunkLines = view.lineOffsets[view.count];
+            } else {
+                chunkLines = chunk.getLineOffset(chunk.committedSize());
+            }
+            lines.firstLine[i + 1] = lines.firstLine[i] + chunkLines;
+        }
+        lines.total = lines.firstLine[lines.chunks.length];
+        return lines;
+    }
+
+    // The chunk's projection, brought up to its committed rows. A new one selects from the chunk's bitmaps in one
+    // pass; after that only rows committed since the last call are checked.
+    private ChunkView view(LogEventStore.Chunk chunk) {
+        int committed = chunk.committedSize();
+        ChunkView view = views.get(chunk);
+        if (view == null) {
+            view = new ChunkView();
+            views.put(chunk, view);
+            filter.select(store, chunk, committed, selectedRows);
+            for (int w = 0; w < selectedRows.length; w++) {
+                for (long bits = selectedRows[w]; bits != 0; bits &= bits - 1) {
+                    addShown(view, chunk, (w << 6) + Long.numberOfTrailingZeros(bits));
+                }
+            }
+        } else {
+            for (int row = view.evaluated; row < committed; row++) {
+                if (filter.matches(store, chunk, row)) addShown(view, chunk, row);
+            }
+        }
+        view.evaluated = committed;
+        return view;
+    }
+
+    private static void addShown(ChunkView view, LogEventStore.Chunk chunk, int row) {
+        if (view.count == view.rows.length) {
+            view.rows = Arrays.copyOf(view.rows, view.count * 2);
+            view.lineOffsets = Arrays.copyOf(view.lineOffsets, view.count * 2 + 1);
+        }
+        view.rows[view.count] = row;
+        view.lineOffsets[view.count + 1] = view.lineOffsets[view.count] + chunk.getLineCount(row);
+        view.count++;
+    }
+
+    private RowRef locateLine(Lines lines, int line) {
+        int lo = 0, hi = lines.chunks.length - 1, chunkIndex = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (lines.firstLine[mid] <= line) {
+                chunkIndex = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (chunkIndex < 0) return null;
+
+        // Chunks with no lines shown share their first line with the next one; the last of them holds it
+        int local = line - lines.firstLine[chunkIndex];
+        lo = 0;
+        hi = lines.shownRows(chunkIndex) - 1;
+        int shown = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (lines.lineOffset(chunkIndex, mid) <= local) {
+                shown = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (shown < 0) return null;
+        return rowRef(lines, chunkIndex, shown);
+    }
+
+    private static RowRef rowRef(Lines lines, int chunkIndex, int shown) {
+        RowRef ref = new RowRef();
+        ref.chunk = lines.chunks[chunkIndex];
+        ref.chunkIndex = chunkIndex;
+        ref.shown = shown;
+        ref.row = lines.row(chunkIndex, shown);
+        ref.firstLine = lines.firstLine[chunkIndex] + lines.lineOffset(chunkIndex, shown);
+        return ref;
+    }
+
+    private RowRef locatePosition(Lines lines, long position) {
+        int lo = 0, hi = lines.chunks.length - 1, chunkIndex = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (rowStart(lines.chunks[mid], 0) <= position) {
+                chunkIndex = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (chunkIndex < 0) chunkIndex = 0;
+
+        // A position before every row shown from its chunk, or in a chunk showing none, moves on to the next row shown
+        LogEventStore.Chunk chunk = lines.chunks.length > 0 ? lines.chunks[chunkIndex] : null;
+        lo = 0;
+        hi = chunk != null ? lines.shownRows(chunkIndex) - 1 : -1;
+        int shown = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (rowStart(chunk, lines.row(chunkIndex, mid)) <= position) {
+                shown = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        while (chunkIndex < lines.chunks.length && lines.shownRows(chunkIndex) == 0) {
+            chunkIndex++;
+            shown = 0;
+        }
+        if (chunkIndex == lines.chunks.length) return null;
+        return rowRef(lines, chunkIndex, shown);
+    }
+
+    private static long rowStart(LogEventStore.Chunk chunk, int row) {
+        return LogEventStore.rowPosition(chunk.firstRow + row);
+    }
+
+    private String rowText(LogEventStore.Chunk chunk, int row) {
+        rowText.setLength(0);
+        console.formatStoredRow(chunk, row, rowText);
+        return rowText.toString();
+    }
+
+    private long positionAt(Point point) {
+        Lines lines = lines();
+        if (lines.total == 0) return -1;
+
+        int line = Math.max(0, Math.min(lines.total - 1, (point.y - INSET_Y) / lineHeight));
+        RowRef ref = locateLine(lines, line);
+        if (ref == null) return -1;
+        TextSegment segment = ref.chunk.getSegment(ref.row);
+        if (segment == null) return -1;
+
+        String text = rowText(ref.chunk, ref.row);
+        int lineStart = 0;
+        for (int k = ref.firstLine; k < line; k++) {
+            lineStart = text.indexOf('\n', lineStart) + 1;
+        }
+        int lineEnd = text.indexOf('\n', lineStart);
+        if (lineEnd < 0) lineEnd = text.length();
+
+        int targetColumn = Math.max(0, Math.round((point.x - INSET_X) / (float) charWidth));
+        int column = 0;
+        int index = lineStart;
+        while (index < lineEnd) {
+            int next = text.charAt(index) == '\t' ? (column / TAB_SIZE + 1) * TAB_SIZE : column + 1;
+            if (next > targetColumn) {
+                if (targetColumn - column > next - targetColumn) index++;
+                break;
+            }
+            column = next;
+            index++;
+        }
+        return rowStart(ref.chunk, ref.row) + index;
+    }
+
+    private static int displayColumn(String text, int lineStart, int index) {
+        int column = 0;
+        for (int i = lineStart; i < index; i++) {
+            column = text.charAt(i) == '\t' ? (column / TAB_SIZE + 1) * TAB_SIZE : column + 1;
+        }
+        return column;
+    }
+
+    @Override
+    protected void paintComponent(Graphics graphics) {
+        Graphics2D g = (Graphics2D) graphics;
+        Map<?, ?> desktopHints = (Map<?, ?>) Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+        if (desktopHints != null) {
+            g.addRenderingHints(desktopHints);
+        } else {
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        }
+
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) clip = new Rectangle(0, 0, getWidth(), getHeight());
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+        Lines lines = lines();
+        if (lines.total == 0) return;
+
+        int firstLine = Math.max(0, (clip.y - INSET_Y) / lineHeight);
+        int lastLine = Math.min(lines.total - 1, (clip.y + clip.height - INSET_Y) / lineHeight);
+        if (firstLine > lastLine) return;
+
+        RowRef ref = locateLine(lines, firstLine);
+        if (ref == null) return;
+        int chunkIndex = ref.chunkIndex;
+        int shown = ref.shown;
+        int line = ref.firstLine;
+
+        long selectionStart = Math.min(anchor, caret);
+        long selectionEnd = Math.max(anchor, caret);
+        boolean hasSelection = anchor >= 0 && caret >= 0 && anchor != caret;
+
+        while (line <= lastLine && chunkIndex < lines.chunks.length) {
+            LogEventStore.Chunk chunk = lines.chunks[chunkIndex];
+            if (shown >= lines.shownRows(chunkIndex)) {
+                chunkIndex++;
+                shown = 0;
+                continue;
+            }
+
+            int row = lines.row(chunkIndex, shown);
+            TextSegment segment = chunk.getSegment(row);
+            String text = rowText(chunk, row);
+            int lineStart = 0;
+            while (lineStart <= text.length() && line <= lastLine) {
+                int lineEnd = text.indexOf('\n', lineStart);
+                if (lineEnd < 0) {
+                    if (lineStart == text.length()) break;
+                    lineEnd = text.length();
+                }
+
+                if (line >= firstLine && segment != null) {
+                    int y = INSET_Y + line * lineHeight;
+                    paintLine(g, chunk, row, segment, text, lineStart, lineEnd, y, hasSelection, selectionStart,
+                        selectionEnd);
+                }
+                line++;
+                lineStart = lineEnd + 1;
+            }
+            shown++;
+        }
+    }
+
+    private void paintLine(Graphics2D g, LogEventStore.Chunk chunk, int row, TextSegment segment, String text,
+                           int lineStart, int lineEnd, int y, boolean hasSelection, long selectionStart,
+                           long selectionEnd) {
+        int length = lineEnd - lineStart;
+        if (lineChars.length < length * TAB_SIZE + 1) {
+            lineChars = new char[length * TAB_SIZE + 1];
+        }
+        if (lineColumns.length < length + 1) {
+            lineColumns = new int[length + 1];
+        }
+
+        int column = 0;
+        for (int i = 0; i < length; i++) {
+            lineColumns[i] = column;
+            char c = text.charAt(lineStart + i);
+            if (c == '\t') {
+                int next = (column / TAB_SIZE + 1) * TAB_SIZE;
+                while (column < next) lineChars[column++] = ' ';
+            } else {
+                lineChars[column++] = c;
+            }
+        }
+        lineColumns[length] = column;
+
+        long lineStartPosition = rowStart(chunk, row) + lineStart;
+        long lineEndPosition = rowStart(chunk, row) + lineEnd;
+
+        if (!searchMatches.isEmpty()) {
+            g.setColor(searchColor);
+            int match = searchMatches.firstEndingAfter(lineStartPosition);
+            for (; match < searchMatches.size() && searchMatches.get(match) < lineEndPosition; match++) {
+                int from = (int) Math.max(0, searchMatches.get(match) - lineStartPosition);
+                int to = (int) Math.min(length, searchMatches.get(match) + searchMatches.lengthAt(match) - lineStartPosition);
+                fillColumns(g, from, to, y);
+            }
+        }
+
+        if (hasSelection && selectionStart <= lineEndPosition && selectionEnd > lineStartPosition) {
+            g.setColor(SELECTION_COLOR);
+            int from = (int) Math.max(0, selectionStart - lineStartPosition);
+            int to = (int) Math.min(length, selectionEnd - lineStartPosition);
+            int x = INSET_X + lineColumns[from] * charWidth;
+            int width = (lineColumns[to] - lineColumns[from]) * charWidth;
+            if (selectionEnd > lineEndPosition) width += charWidth;
+            g.fillRect(x, y, width, lineHeight);
+        }
+
+        int[] spans = console.displaySpans(chunk, row, segment);
+        int spanIndex = firstSpanEndingAfter(spans, lineStart);
+        int position = lineStart;
+        int baseline = y + ascent;
+        while (position < lineEnd) {
+            int runEnd;
+            Style style;
+            if (spanIndex < spans.length / 3 && spans[spanIndex * 3] <= position) {
+                runEnd = Math.min(lineEnd, spans[spanIndex * 3] + spans[spanIndex * 3 + 1]);
+                style = console.getStyleById(spans[spanIndex * 3 + 2]);
+                spanIndex++;
+            } else {
+                runEnd = spanIndex < spans.length / 3 ? Math.min(lineEnd, spans[spanIndex * 3]) : lineEnd;
+                style = segment.style;
+            }
+            drawRun(g, style, position - lineStart, runEnd - lineStart, y, baseline);
+            position = runEnd;
+        }
+    }
+
+    private void drawRun(Graphics2D g, Style style, int from, int to, int y, int baseline) {
+        int x = INSET_X + lineColumns[from] * charWidth;
+        int columns = lineColumns[to] - lineColumns[from];
+        if (columns <= 0) return;
+
+        if (style != null && style.isDefined(StyleConstants.Background)) {
+            g.setColor(StyleConstants.getBackground(style));
+            g.fillRect(x, y, columns * charWidth, lineHeight);
+        }
+
+        boolean bold = style != null && StyleConstants.isBold(style);
+        boolean italic = style != null && StyleConstants.isItalic(style);
+        g.setFont(bold ? (italic ? boldItalicFont : boldFont) : (italic ? italicFont : plainFont));
+        g.setColor(style != null ? StyleConstants.getForeground(style) : getForeground());
+        g.drawChars(lineChars, lineColumns[from], columns, x, baseline);
+
+        if (style != null && StyleConstants.isUnderline(style)) {
+            g.drawLine(x, baseline + 1, x + columns * charWidth, baseline + 1);
+        }
+    }
+
+    private void fillColumns(Graphics2D g, int from, int to, int y) {
+        if (from >= to) return;
+        int x = INSET_X + lineColumns[from] * charWidth;
+        g.fillRect(x, y, (lineColumns[to] - lineColumns[from]) * charWidth, lineHeight);
+    }
+
+    private static int firstSpanEndingAfter(int[] spans, int offset) {
+        int lo = 0, hi = spans.length / 3;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (spans[mid * 3] + spans[mid * 3 + 1] <= offset) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        Lines lines = lines();
+        int maxLineLength = 0;
+        for (LogEventStore.Chunk chunk : lines.chunks) {
+            maxLineLength = Math.max(maxLineLength, chunk.getMaxLineLength());
+        }
+        return new Dimension(INSET_X * 2 + (maxLineLength + PREFIX_ALLOWANCE) * charWidth,
+            INSET_Y * 2 + lines.total * lineHeight);
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? lineHeight : charWidth * 4;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL
+            ? Math.max(lineHeight, visibleRect.height - lineHeight)
+            : Math.max(charWidth, visibleRect.width - charWidth * 4);
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return getParent() instanceof JViewport && getParent().getWidth() > getPreferredSize().width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        return getParent() instanceof JViewport && getParent().getHeight() > getPreferredSize().height;
+    }
+}
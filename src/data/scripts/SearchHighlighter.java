@@ -0,0 +1,54 @@
+package data.scripts;
+
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.Shape;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultHighlighter;
+import javax.swing.text.JTextComponent;
+import javax.swing.text.Position;
+import javax.swing.text.View;
+
+// The text pane's highlighter, which also paints search hits as a layer under the text. Nothing is added to the
+// highlighter or the document per hit: each glyph view asks for its own range while painting, and the hits inside
+// it are found by binary search in SearchMatches. Only what is on screen costs anything to draw.
+public class SearchHighlighter extends DefaultHighlighter {
+    private final CustomConsoleWindow console;
+    private final SearchMatches matches;
+    private Color color = new Color(255, 255, 0, 100);
+
+    public SearchHighlighter(CustomConsoleWindow console, SearchMatches matches) {
+        this.console = console;
+        this.matches = matches;
+        // Selection is painted as a layer too, so it lands on top of the search hit it selects
+        setDrawsLayeredHighlights(true);
+    }
+
+    public void setColor(Color color) {
+        this.color = color;
+    }
+
+    @Override
+    public void paintLayeredHighlights(Graphics g, int p0, int p1, Shape viewBounds, JTextComponent editor, View view) {
+        long from = matches.isEmpty() ? -1 : console.positionAtOffset(p0);
+        if (from >= 0) {
+            g.setColor(color);
+            for (int i = matches.firstEndingAfter(from); i < matches.size(); i++) {
+                int offset = console.documentOffsetOf(matches.get(i));
+                if (offset < 0 || offset >= p1) break;
+                int start = Math.max(p0, offset);
+                int end = Math.min(p1, offset + matches.lengthAt(i));
+                try {
+                    Shape shape = view.modelToView(start, Position.Bias.Forward, end, Position.Bias.Backward, viewBounds);
+                    Rectangle r = shape instanceof Rectangle ? (Rectangle) shape : shape.getBounds();
+                    g.fillRect(r.x, r.y, r.width, r.height);
+                } catch (BadLocationException e) {
+                    // The view is mid-update; the next paint has the right offsets
+                }
+            }
+        }
+        super.paintLayeredHighlights(g, p0, p1, viewBounds, editor, view);
+    }
+}
@@ -0,0 +1,62 @@
+package data.scripts;
+
+import java.util.Arrays;
+
+// The current search hits as sorted arrays of logical start positions and lengths. Hits never overlap, so their
+// ends are sorted too. Shared by the window and whichever view paints them, so marking or clearing a search never
+// touches the document. EDT only.
+public final class SearchMatches {
+    private long[] positions = new long[64];
+    private int[] lengths = new int[64];
+    private int count = 0;
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    public long get(int index) {
+        return positions[index];
+    }
+
+    public int lengthAt(int index) {
+        return lengths[index];
+    }
+
+    // Drops every hit; the arrays are kept for reuse unless they grew large
+    public void clear() {
+        if (positions.length > 4096) {
+            positions = new long[64];
+            lengths = new int[64];
+        }
+        count = 0;
+    }
+
+    // Hits must arrive in ascending order
+    public void add(long position, int length) {
+        if (count == positions.length) {
+            positions = Arrays.copyOf(positions, positions.length * 2);
+            lengths = Arrays.copyOf(lengths, lengths.length * 2);
+        }
+        positions[count] = position;
+        lengths[count] = length;
+        count++;
+    }
+
+    // Index of the first hit that ends after position, or size() if there is none
+    public int firstEndingAfter(long position) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (positions[mid] + lengths[mid] <= position) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
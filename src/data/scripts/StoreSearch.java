@@ -0,0 +1,371 @@
+package data.scripts;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.swing.SwingUtilities;
+
+// Finds search hits in the retained rows on a background thread. Each row is formatted into one reused buffer and
+// matched there, with case folded a character at a time, so no copy of the document (or a lower-cased copy of it)
+// is ever made. Hits reach the EDT in batches while the scan runs, and starting or cancelling a search moves the
+// generation on, which the scan checks every row and the EDT checks before delivering a batch.
+// Regexes run one display line at a time over an InterruptibleCharSequence, with a budget per line and one for
+// the whole search, so a pathological expression costs a skipped line or an early stop rather than the thread.
+// When the store keeps a TrigramIndex, a query with literals of three or more characters (for a regex, ones every
+// match must contain) only formats and verifies the rows whose body holds their trigrams, plus the rows whose
+// prefix columns could hold a match, which PrefixProbe works out once per thread, level and category.
+public class StoreSearch {
+    // Hits found since the last batch are handed over at least this often
+    private static final long BATCH_NANOS = 50_000_000L;
+    private static final int PATTERN_CACHE_SIZE = 16;
+
+    public interface ResultSink {
+        // On the EDT, only for the search that is still current; done is true exactly once, on the last batch
+        void found(long[] positions, int[] lengths, int count, boolean done);
+    }
+
+    private final LogEventStore store;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ExternalLogConsole-Search");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicInteger generation = new AtomicInteger();
+    private final long lineBudgetNanos = TimeUnit.MILLISECONDS.toNanos(ExternalConsoleSettings.getSearchLineBudgetMs());
+    private final long searchBudgetNanos = TimeUnit.MILLISECONDS.toNanos(ExternalConsoleSettings.getSearchBudgetMs());
+
+    // Compiled regexes by flags and source, most recently used last; EDT only
+    private final Map<String, Pattern> patternCache = new LinkedHashMap<String, Pattern>(PATTERN_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+            return size() > PATTERN_CACHE_SIZE;
+        }
+    };
+    private long patternCacheHits = 0;
+    private long patternCacheMisses = 0;
+
+    private volatile long lastRows = 0;
+    private volatile long lastNanos = 0;
+    private volatile String lastOutcome = "none";
+    private volatile long lastLinesSkipped = 0;
+    private volatile long lastRowsScanned = 0;
+    private volatile boolean lastIndexed = false;
+
+    // A query ready to run: either a literal (folded unless case-sensitive) or a compiled regex
+    private static final class Query {
+        final char[] literal;
+        final Pattern pattern;
+        final boolean caseSensitive;
+        final boolean wholeWord;
+        // Folded literals at least one of which any hit contains, or null if the index can't narrow this query
+        char[][] indexLiterals;
+
+        Query(char[] literal, Pattern pattern, boolean caseSensitive, boolean wholeWord) {
+            this.literal = literal;
+            this.pattern = pattern;
+            this.caseSensitive = caseSensitive;
+            this.wholeWord = wholeWord;
+        }
+    }
+
+    // Whether a literal could start inside a row's prefix columns, which the body index doesn't cover. Decided once
+    // per thread, level and category, with the time column standing for any digits. The answer is always, never,
+    // or a list of (literal, split) pairs: the prefix ends with the literal's first split characters, so the row
+    // is a candidate if its body starts with the rest.
+    private static final class PrefixProbe {
+        private static final int[] ALWAYS = {-1};
+        private static final int[] NEVER = {};
+        private static final char ANY_DIGIT = '\uFFFF';
+
+        final char[][] literals;
+        final LogLineFormatter formatter;
+        final Map<Long, int[]> answers = new HashMap<>();
+        final StringBuilder prefix = new StringBuilder();
+        long lastKey = -1;
+        int[] lastAnswer;
+
+        PrefixProbe(char[][] literals, LogLineFormatter formatter) {
+            this.literals = literals;
+            this.formatter = formatter;
+        }
+
+        boolean mayMatch(LogEventStore.Chunk chunk, int index) {
+            long key = ((long) chunk.getThreadId(index) << 35) | ((long) chunk.getCategoryId(index) << 3) | chunk.getLevel(index);
+            if (key != lastKey) {
+                lastAnswer = answers.computeIfAbsent(key, k -> analyse(chunk, index));
+                lastKey = key;
+            }
+            int[] answer = lastAnswer;
+            if (answer == NEVER) return false;
+            if (answer == ALWAYS) return true;
+            for (int i = 0; i < answer.length; i += 2) {
+                if (chunk.bodyStartsWithFolded(index, literals[answer[i]], answer[i + 1])) return true;
+            }
+            return false;
+        }
+
+        private int[] analyse(LogEventStore.Chunk chunk, int index) {
+            prefix.setLength(0);
+            formatter.appendPrefix(chunk, index, prefix);
+            char[] text = new char[prefix.length()];
+            for (int i = 0; i < text.length; i++) {
+                char c = prefix.charAt(i);
+                boolean time = formatter.shows(LogLineFormatter.TIME) && i < LogLineFormatter.TIME_WIDTH;
+                text[i] = time && c >= '0' && c <= '9' ? ANY_DIGIT : TrigramIndex.fold(c);
+            }
+
+            int[] splits = new int[8];
+            int count = 0;
+            for (int l = 0; l < literals.length; l++) {
+                char[] literal = literals[l];
+                for (int start = 0; start < text.length; start++) {
+                    int j = 0;
+                    while (j < literal.length && start + j < text.length && matches(text[start + j], literal[j])) j++;
+                    if (j == literal.length) return ALWAYS;
+                    if (start + j == text.length && j > 0) {
+                        if (count + 2 > splits.length) splits = Arrays.copyOf(splits, splits.length * 2);
+                        splits[count++] = l;
+                        splits[count++] = j;
+                    }
+                }
+            }
+            return count == 0 ? NEVER : Arrays.copyOf(splits, count);
+        }
+
+        private static boolean matches(char prefixChar, char literalChar) {
+            return prefixChar == literalChar || (prefixChar == ANY_DIGIT && literalChar >= '0' && literalChar <= '9');
+        }
+    }
+
+    // Hits collected on the search thread between batches
+    private static final class Hits {
+        long[] positions = new long[256];
+        int[] lengths = new int[256];
+        int count = 0;
+
+        void add(long position, int length) {
+            if (count == positions.length) {
+                positions = Arrays.copyOf(positions, count * 2);
+                lengths = Arrays.copyOf(lengths, count * 2);
+            }
+            positions[count] = position;
+            lengths[count] = length;
+            count++;
+        }
+    }
+
+    public StoreSearch(LogEventStore store) {
+        this.store = store;
+    }
+
+    // Replaces any search still running. The formatter must be the one the visible rows were laid out with.
+    // EDT only; throws PatternSyntaxException for a bad regex, leaving the previous search cancelled.
+    public void start(String text, boolean caseSensitive, boolean wholeWord, boolean regex, LogLineFormatter formatter, ResultSink sink) {
+        int id = generation.incrementAndGet();
+        Query query = regex
+            ? new Query(null, compile(text, caseSensitive, wholeWord), caseSensitive, wholeWord)
+            : new Query(caseSensitive ? text.toCharArray() : fold(text), null, caseSensitive, wholeWord);
+        if (store.isIndexed()) {
+            query.indexLiterals = indexLiterals(regex ? LiteralPrefilter.requiredLiterals(text) : new String[] {text});
+        }
+        executor.execute(() -> run(id, query, formatter, sink));
+    }
+
+    private Pattern compile(String source, boolean caseSensitive, boolean wholeWord) {
+        String key = (caseSensitive ? "c" : "i") + (wholeWord ? "w" : "-") + source;
+        Pattern pattern = patternCache.get(key);
+        if (pattern != null) {
+            patternCacheHits++;
+            return pattern;
+        }
+        patternCacheMisses++;
+        int flags = caseSensitive ? 0 : Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        pattern = Pattern.compile(wholeWord ? "\\b(?:" + source + ")\\b" : source, flags);
+        patternCache.put(key, pattern);
+        return pattern;
+    }
+
+    private static char[][] indexLiterals(String[] literals) {
+        if (literals == null || literals.length == 0) return null;
+        char[][] folded = new char[literals.length][];
+        for (int i = 0; i < literals.length; i++) {
+            if (literals[i].length() < 3) return null;
+            folded[i] = fold(literals[i]);
+        }
+        return folded;
+    }
+
+    public void cancel() {
+        generation.incrementAndGet();
+    }
+
+    public void shutdown() {
+        cancel();
+        executor.shutdownNow();
+    }
+
+    private void run(int id, Query query, LogLineFormatter formatter, ResultSink sink) {
+        long startTime = System.nanoTime();
+        long deadline = searchBudgetNanos > 0 ? startTime + searchBudgetNanos : Long.MAX_VALUE;
+        long lastBatch = startTime;
+        long rows = 0;
+        long scanned = 0;
+        long[] linesSkipped = new long[1];
+        Hits hits = new Hits();
+        StringBuilder row = new StringBuilder();
+        Matcher matcher = query.pattern != null ? query.pattern.matcher("") : null;
+        PrefixProbe probe = query.indexLiterals != null ? new PrefixProbe(query.indexLiterals, formatter) : null;
+        long[] candidates = new long[LogEventStore.CHUNK_ROWS / 64];
+        lastIndexed = probe != null;
+
+        for (LogEventStore.Chunk chunk : store.snapshot()) {
+            int committed = chunk.committedSize();
+            if (probe != null) {
+                Arrays.fill(candidates, 0);
+                store.bodyCandidates(chunk, query.indexLiterals, candidates);
+            }
+            scanned += committed;
+            for (int i = 0; i < committed; i++) {
+                if (probe != null && (candidates[i >>> 6] & (1L << i)) == 0 && !probe.mayMatch(chunk, i)) continue;
+                if (generation.get() != id) {
+                    record(rows, scanned, startTime, "cancelled", linesSkipped[0]);
+                    return;
+                }
+                if (chunk.getSegment(i) == null) continue;
+
+                row.setLength(0);
+                formatter.format(chunk, i, row);
+                rows++;
+                long rowStart = LogEventStore.rowPosition(chunk.firstRow + i);
+                if (matcher == null) {
+                    findLiteral(query, row, rowStart, hits);
+                } else if (!findRegex(matcher, row, rowStart, deadline, hits, linesSkipped)) {
+                    record(rows, scanned, startTime, "stopped at the search budget", linesSkipped[0]);
+                    deliver(id, sink, hits, true);
+                    return;
+                }
+            }
+
+            long now = System.nanoTime();
+            if (hits.count > 0 && now - lastBatch >= BATCH_NANOS) {
+                deliver(id, sink, hits, false);
+                hits = new Hits();
+                lastBatch = now;
+            }
+        }
+        record(rows, scanned, startTime, "completed", linesSkipped[0]);
+        deliver(id, sink, hits, true);
+    }
+
+    private static void findLiteral(Query query, StringBuilder row, long rowStart, Hits hits) {
+        char[] needle = query.literal;
+        int index = 0;
+        while ((index = indexOf(row, needle, index, query.caseSensitive)) != -1) {
+            if (!query.wholeWord || isWholeWord(row, index, index + needle.length)) {
+                hits.add(rowStart + index, needle.length);
+                index += needle.length;
+            } else {
+                index++;
+            }
+        }
+    }
+
+    // False once the whole search has run out of time
+    private boolean findRegex(Matcher matcher, StringBuilder row, long rowStart, long deadline, Hits hits, long[] linesSkipped) {
+        int lineStart = 0;
+        int length = row.length();
+        while (lineStart < length) {
+            int lineEnd = row.indexOf("\n", lineStart);
+            if (lineEnd < 0) lineEnd = length;
+
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) return false;
+            InterruptibleCharSequence input = new InterruptibleCharSequence(row.substring(lineStart, lineEnd));
+            input.startJob(deadline == Long.MAX_VALUE ? 0 : remaining);
+            input.startStep(lineBudgetNanos);
+            matcher.reset(input);
+            try {
+                while (matcher.find()) {
+                    if (matcher.end() > matcher.start()) {
+                        hits.add(rowStart + lineStart + matcher.start(), matcher.end() - matcher.start());
+                    }
+                }
+            } catch (InterruptibleCharSequence.Timeout e) {
+                if (!e.step) return false;
+                // Hits already found on the line are kept; the rest of it is skipped
+                linesSkipped[0]++;
+            }
+            lineStart = lineEnd + 1;
+        }
+        return true;
+    }
+
+    private static boolean isWholeWord(CharSequence text, int start, int end) {
+        return (start == 0 || !isWordChar(text.charAt(start - 1)))
+            && (end == text.length() || !isWordChar(text.charAt(end)));
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_';
+    }
+
+    private void deliver(int id, ResultSink sink, Hits hits, boolean done) {
+        SwingUtilities.invokeLater(() -> {
+            if (generation.get() == id) sink.found(hits.positions, hits.lengths, hits.count, done);
+        });
+    }
+
+    private void record(long rows, long scanned, long startTime, String outcome, long skipped) {
+        lastRows = rows;
+        lastRowsScanned = scanned;
+        lastNanos = System.nanoTime() - startTime;
+        lastOutcome = outcome;
+        lastLinesSkipped = skipped;
+    }
+
+    private static char fold(char c) {
+        return TrigramIndex.fold(c);
+    }
+
+    private static char[] fold(String text) {
+        char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = fold(chars[i]);
+        }
+        return chars;
+    }
+
+    static int indexOf(CharSequence text, char[] needle, int from, boolean caseSensitive) {
+        if (needle.length == 0) return -1;
+        char first = needle[0];
+        int last = text.length() - needle.length;
+        for (int i = from; i <= last; i++) {
+            char c = text.charAt(i);
+            if (c != first && (caseSensitive || fold(c) != first)) continue;
+            int j = 1;
+            while (j < needle.length) {
+                c = text.charAt(i + j);
+                if (c != needle[j] && (caseSensitive || fold(c) != needle[j])) break;
+                j++;
+            }
+            if (j == needle.length) return i;
+        }
+        return -1;
+    }
+
+    public String report() {
+        return "last search: " + lastRows + " of " + lastRowsScanned + " rows verified in "
+            + String.format("%.1f", lastNanos / 1_000_000.0) + " ms, " + lastOutcome
+            + (lastIndexed ? " (narrowed by the trigram index)" : "")
+            + "\nregex lines skipped over budget: " + lastLinesSkipped
+            + "\npattern cache: " + patternCacheHits + " hits, " + patternCacheMisses + " compiles";
+    }
+}
@@ -0,0 +1,261 @@
+package data.scripts;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Decides on the logging thread, before an event is queued, whether the console should drop it. Rules come from
+// externalconsolewindowsuppress; every condition a rule sets must hold for it to match. They are compiled into a
+// trie over category prefixes, so an event is only checked against rules for its own logger (plus those with no
+// category), and one LiteralPrefilter pass that finds every rule's message literals at once. The message is only
+// rendered once a rule's category, level and thread have all matched, and regexes only run when a literal they
+// need is present. Thread-safe: the compiled rules are immutable and the counters are LongAdders.
+public class SuppressionFilter {
+    private static final Logger log = Logger.getLogger(SuppressionFilter.class);
+
+    static final String SETTING = "externalconsolewindowsuppress";
+    private static final String DEFAULT_RULES = "[{\"name\": \"texture buffer cleanup\", \"message\": \"Cleaned buffer for texture\"}]";
+
+    private static final class Rule {
+        final String name;
+        final String category;
+        // Highest level the rule applies to, or -1 for any
+        final int maxLevel;
+        final String thread;
+        final String literal;
+        final int literalId;
+        final Pattern regex;
+        // Prefilter ids of which at least one must be present for regex to match, or null to always run it
+        final int[] regexLiteralIds;
+        final LongAdder hits = new LongAdder();
+
+        Rule(String name, String category, int maxLevel, String thread, String literal, int literalId, Pattern regex, int[] regexLiteralIds) {
+            this.name = name;
+            this.category = category;
+            this.maxLevel = maxLevel;
+            this.thread = thread;
+            this.literal = literal;
+            this.literalId = literalId;
+            this.regex = regex;
+            this.regexLiteralIds = regexLiteralIds;
+        }
+
+        boolean needsMessage() {
+            return literal != null || regex != null;
+        }
+    }
+
+    private static final class TrieNode {
+        final Map<Character, TrieNode> children = new HashMap<>();
+        final List<Rule> rules = new ArrayList<>();
+    }
+
+    private final List<Rule> rules;
+    private final TrieNode categories = new TrieNode();
+    private final LiteralPrefilter literals;
+    private final boolean anyRules;
+
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder rendered = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+
+    // Per-event scratch for the lazily rendered message and its literal scan
+    private static final class Probe {
+        final LoggingEvent event;
+        String message;
+        BitSet found;
+
+        Probe(LoggingEvent event) {
+            this.event = event;
+        }
+    }
+
+    private SuppressionFilter(List<Rule> rules, List<String> literalList) {
+        this.rules = rules;
+        this.literals = literalList.isEmpty() ? null : new LiteralPrefilter(literalList);
+        this.anyRules = !rules.isEmpty();
+        for (Rule rule : rules) {
+            TrieNode node = categories;
+            if (rule.category != null) {
+                for (int i = 0; i < rule.category.length(); i++) {
+                    node = node.children.computeIfAbsent(rule.category.charAt(i), c -> new TrieNode());
+                }
+            }
+            node.rules.add(rule);
+        }
+    }
+
+    // Without the setting, only the game's texture buffer chatter is dropped, as the console always did
+    public static SuppressionFilter fromSettings() {
+        JSONArray array = ExternalConsoleSettings.getJSONArray(SETTING);
+        if (array == null) {
+            try {
+                array = new JSONArray(DEFAULT_RULES);
+            } catch (JSONException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return compile(array);
+    }
+
+    public static SuppressionFilter compile(JSONArray array) {
+        List<Rule> rules = new ArrayList<>();
+        List<String> literalList = new ArrayList<>();
+        Map<String, Integer> literalIds = new HashMap<>();
+
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject spec = array.optJSONObject(i);
+            if (spec == null) {
+                log.warn(SETTING + "[" + i + "] is not an object, ignoring it");
+                continue;
+            }
+            String category = emptyToNull(spec.optString("category", ""));
+            String thread = emptyToNull(spec.optString("thread", ""));
+            String literal = emptyToNull(spec.optString("message", ""));
+            String regexSource = emptyToNull(spec.optString("regex", ""));
+            String levelName = emptyToNull(spec.optString("level", ""));
+
+            int maxLevel = -1;
+            if (levelName != null) {
+                Level level = Level.toLevel(levelName.trim(), null);
+                if (level == null) {
+                    log.warn(SETTING + "[" + i + "] has unknown level \"" + levelName + "\", ignoring the rule");
+                    continue;
+                }
+                maxLevel = LogEventStore.levelCode(level);
+            }
+
+            Pattern regex = null;
+            int[] regexLiteralIds = null;
+            if (regexSource != null) {
+                try {
+                    regex = Pattern.compile(regexSource);
+                } catch (PatternSyntaxException e) {
+                    log.warn(SETTING + "[" + i + "] has an invalid regex, ignoring the rule: " + e.getMessage());
+                    continue;
+                }
+                String[] required = LiteralPrefilter.requiredLiterals(regexSource);
+                if (required != null) {
+                    regexLiteralIds = new int[required.length];
+                    for (int r = 0; r < required.length; r++) {
+                        regexLiteralIds[r] = literalId(required[r], literalList, literalIds);
+                    }
+                }
+            }
+
+            if (category == null && thread == null && literal == null && regex == null && maxLevel < 0) {
+                log.warn(SETTING + "[" + i + "] has no conditions and would hide everything, ignoring it");
+                continue;
+            }
+
+            int id = literal != null ? literalId(literal, literalList, literalIds) : -1;
+            String name = emptyToNull(spec.optString("name", ""));
+            if (name == null) name = describe(category, levelName, thread, literal, regexSource);
+            rules.add(new Rule(name, category, maxLevel, thread, literal, id, regex, regexLiteralIds));
+        }
+        return new SuppressionFilter(rules, literalList);
+    }
+
+    private static int literalId(String literal, List<String> literalList, Map<String, Integer> literalIds) {
+        return literalIds.computeIfAbsent(LiteralPrefilter.fold(literal), folded -> {
+            literalList.add(folded);
+            return literalList.size() - 1;
+        });
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    private static String describe(String category, String level, String thread, String literal, String regex) {
+        StringBuilder sb = new StringBuilder();
+        if (category != null) sb.append("category ").append(category).append("* ");
+        if (level != null) sb.append("level <= ").append(level.toUpperCase()).append(' ');
+        if (thread != null) sb.append("thread \"").append(thread).append("\" ");
+        if (literal != null) sb.append("message \"").append(literal).append("\" ");
+        if (regex != null) sb.append("regex /").append(regex).append("/ ");
+        return sb.toString().trim();
+    }
+
+    // True if the event should be dropped; counted against the first matching rule found
+    public boolean suppresses(LoggingEvent event) {
+        if (!anyRules) return false;
+        checked.increment();
+
+        Probe probe = new Probe(event);
+        String category = event.getLoggerName();
+        TrieNode node = categories;
+        if (check(node, probe)) return true;
+        if (category != null) {
+            for (int i = 0, n = category.length(); i < n; i++) {
+                node = node.children.get(category.charAt(i));
+                if (node == null) break;
+                if (check(node, probe)) return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean check(TrieNode node, Probe probe) {
+        for (Rule rule : node.rules) {
+            if (matches(rule, probe)) {
+                rule.hits.increment();
+                suppressed.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean matches(Rule rule, Probe probe) {
+        LoggingEvent event = probe.event;
+        if (rule.maxLevel >= 0 && LogEventStore.levelCode(event.getLevel()) > rule.maxLevel) return false;
+        if (rule.thread != null && !rule.thread.equals(event.getThreadName())) return false;
+        if (!rule.needsMessage()) return true;
+
+        if (probe.message == null) {
+            String message = event.getRenderedMessage();
+            probe.message = message != null ? message : "";
+            probe.found = literals != null ? literals.scan(probe.message) : new BitSet();
+            rendered.increment();
+        }
+        // The scan is case-insensitive, so a hit is confirmed against the literal as written
+        if (rule.literal != null && (!probe.found.get(rule.literalId) || !probe.message.contains(rule.literal))) return false;
+        if (rule.regex != null) {
+            if (rule.regexLiteralIds != null && !anyFound(rule.regexLiteralIds, probe.found)) return false;
+            if (!rule.regex.matcher(probe.message).find()) return false;
+        }
+        return true;
+    }
+
+    private static boolean anyFound(int[] ids, BitSet found) {
+        for (int id : ids) {
+            if (found.get(id)) return true;
+        }
+        return false;
+    }
+
+    public String report() {
+        if (!anyRules) return "no rules";
+        StringBuilder sb = new StringBuilder();
+        sb.append("events checked: ").append(checked.sum())
+            .append("\nmessages rendered: ").append(rendered.sum())
+            .append("\nevents suppressed: ").append(suppressed.sum());
+        for (Rule rule : rules) {
+            sb.append("\n  ").append(rule.name).append(": ").append(rule.hits.sum());
+        }
+        return sb.toString();
+    }
+}
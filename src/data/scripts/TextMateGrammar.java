@@ -5,26 +5,26 @@ import org.apache.log4j.Logger;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.*;
 
-import javax.swing.text.Style;
-
 import data.scripts.CustomConsoleWindow.TextSegment;
 
 public class TextMateGrammar {
     private static final Logger log = Logger.getLogger(TextMateGrammar.class);
     
-    private static Map<String, Pattern> patternCache = new HashMap<>();
-    private static JSONObject cachedGrammar = null;
-    
-    private JSONObject grammar;
-    private JSONObject theme;
-    public Map<String, StyleInfo> scopeToStyle = new HashMap<>();
-    
+    private final CompiledGrammar compiled;
+    private final CombinedTokenizer tokenizer;
+    // Same map as compiled.getScopeToStyle(), kept as a field for existing callers; unmodifiable
+    public final Map<String, StyleInfo> scopeToStyle;
+
+    private final AtomicLong rowsTokenized = new AtomicLong();
+    private final AtomicLong linesTokenized = new AtomicLong();
+
     public static class StyleInfo {
-        public String foreground;
-        public String background;
-        public String fontStyle;
+        public final String foreground;
+        public final String background;
+        public final String fontStyle;
         
         public StyleInfo(String foreground, String background, String fontStyle) {
             this.foreground = foreground;
@@ -33,174 +33,98 @@ public class TextMateGrammar {
         }
     }
     
+    // Cheap: the grammar and theme are compiled once and shared, only the statistics are per instance
     public TextMateGrammar() {
-        loadGrammar();
-        loadTheme();
-        buildScopeMap();
+        this.compiled = CompiledGrammar.shared();
+        this.tokenizer = compiled.getTokenizer();
+        this.scopeToStyle = compiled.getScopeToStyle();
     }
-    
-    private void loadGrammar() {
-        try {
-            InputStream is = getClass().getClassLoader().getResourceAsStream("data/scripts/log.tmLanguage.json");
-            if (is == null) {
-                log.error("Could not load log.tmLanguage.json from classpath");
-                return;
+
+    public CompiledGrammar getCompiled() {
+        return compiled;
+    }
+
+    // Collects highlight runs for one segment and packs them into the sorted triples TextSegment.spans expects
+    static class SpanBuilder {
+        private int[] triples = new int[48];
+        private int count = 0;
+
+        void add(int start, int length, int styleId) {
+            if (count * 3 == triples.length) {
+                triples = Arrays.copyOf(triples, triples.length * 2);
             }
-            
-            String content = new String(is.readAllBytes(), StandardCharsets.UTF_8);
-            grammar = new JSONObject(content);
-            
-            // Cache patterns when grammar is loaded
-            cachePatterns();
-            
-            log.info("Successfully loaded log grammar");
-        } catch (Exception e) {
-            log.error("Error loading grammar: " + e.getMessage(), e);
+            triples[count * 3] = start;
+            triples[count * 3 + 1] = length;
+            triples[count * 3 + 2] = styleId;
+            count++;
         }
-    }
-    
-    private void loadTheme() {
-        try {
-            InputStream is = getClass().getClassLoader().getResourceAsStream("data/scripts/dark_vs.json");
-            if (is == null) {
-                log.error("Could not load dark_vs.json from classpath");
-                return;
+
+        int[] toSortedSpans() {
+            long[] order = new long[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = ((long) triples[i * 3] << 32) | i;
             }
-            
-            String content = new String(is.readAllBytes(), StandardCharsets.UTF_8);
-            theme = new JSONObject(content);
-            log.info("Successfully loaded dark theme");
-        } catch (Exception e) {
-            log.error("Error loading theme: " + e.getMessage(), e);
+            Arrays.sort(order);
+
+            int[] spans = new int[count * 3];
+            for (int i = 0; i < count; i++) {
+                int source = (int) order[i] * 3;
+                spans[i * 3] = triples[source];
+                spans[i * 3 + 1] = triples[source + 1];
+                spans[i * 3 + 2] = triples[source + 2];
+            }
+            return spans;
         }
     }
-    
-    private void buildScopeMap() {
-        if (theme == null) return;
-        
+
+    // Computes the spans of a row's body only; the console applies them to the document on the EDT afterwards.
+    // text is the body with bodyOffset characters of context in front (the logger name), so rules keyed on what
+    // precedes a message still match. Runs inside that context are dropped and the rest are stored relative to
+    // the body, which keeps them valid whichever prefix columns are shown.
+    public void parseLine(String text, int bodyOffset, CustomConsoleWindow console, TextSegment segment) {
+        SpanBuilder spans = new SpanBuilder();
         try {
-            JSONArray tokenColors = theme.getJSONArray("tokenColors");
-            for (int i = 0; i < tokenColors.length(); i++) {
-                JSONObject tokenColor = tokenColors.getJSONObject(i);
-                JSONObject settings = tokenColor.getJSONObject("settings");
-                
-                String foreground = settings.optString("foreground", null);
-                String background = settings.optString("background", null);
-                String fontStyle = settings.optString("fontStyle", null);
-                
-                StyleInfo styleInfo = new StyleInfo(foreground, background, fontStyle);
-                
-                Object scopeObj = tokenColor.get("scope");
-                if (scopeObj instanceof String) {
-                    scopeToStyle.put((String) scopeObj, styleInfo);
-
-                } else if (scopeObj instanceof JSONArray) {
-                    JSONArray scopeArray = (JSONArray) scopeObj;
-                    for (int j = 0; j < scopeArray.length(); j++) {
-                        scopeToStyle.put(scopeArray.getString(j), styleInfo);
-                    }
-                }
-            }
-            log.info("Built scope map with " + scopeToStyle.size() + " entries");
-        } catch (Exception e) {
-            log.error("Error building scope map: " + e.getMessage(), e);
+            if (tokenizer == null) return;
+            tokenizer.tokenize(text, (start, length, scope) -> {
+                int end = start + length;
+                if (end <= bodyOffset) return true;
+                int from = Math.max(start, bodyOffset);
+                spans.add(from - bodyOffset, end - from, console.getScopeStyle(scope).id);
+                return true;
+            });
+            rowsTokenized.incrementAndGet();
+            linesTokenized.addAndGet(CombinedTokenizer.lineCount(text));
+        } finally {
+            segment.setSpans(spans.toSortedSpans());
+            console.segmentHighlighted(segment);
         }
     }
-    
-    private static class CachedPattern {
-        Pattern pattern;
-        String scope;
-        boolean isRange;
-        Pattern endPattern;
-        JSONArray nestedPatterns;
-        boolean useGroup = false;
+
+    public String tokenizerReport() {
+        return "rows tokenized: " + rowsTokenized.get()
+            + "\nlines tokenized: " + linesTokenized.get();
     }
-    private static List<CachedPattern> cachedPatternList = new ArrayList<>();
 
-    private void cachePatterns() {
-        if (grammar == null) return;
+    // Per-rule finds, matches and sampled timings, most expensive first
+    public String profileReport() {
+        return tokenizer != null ? tokenizer.getProfiler().report() : "No grammar loaded";
+    }
 
-        if (cachedGrammar == grammar) return;
-        
-        patternCache.clear();
-        cachedGrammar = grammar;
-        
-        try {
-            JSONArray patterns = grammar.getJSONArray("patterns");
-            cachePatternsRecursive(patterns);
-            log.info("Cached " + patternCache.size() + " regex patterns");
-        } catch (Exception e) {
-            log.error("Error caching patterns: " + e.getMessage(), e);
-        }
+    public String budgetReport() {
+        return tokenizer != null ? tokenizer.budgetReport() : "No grammar loaded";
     }
-    
-    private void cachePatternsRecursive(JSONArray patterns) {
-        for (int i = 0; i < patterns.length(); i++) {
-            try {
-                JSONObject pattern = patterns.getJSONObject(i);
-                CachedPattern cp = new CachedPattern();
-    
-                if (pattern.has("match")) {
-                    String regex = cleanRegexPattern(pattern.getString("match"));
-                    cp.pattern = patternCache.computeIfAbsent(regex, r -> {
-                        try {
-                            return Pattern.compile(r);
-                        } catch (PatternSyntaxException e) {
-                            log.warn("Invalid regex: " + r, e);
-                            return null;
-                        }
-                    });
-                    cp.scope = pattern.optString("name", "");
-                    cp.isRange = false;
-                    cachedPatternList.add(cp);
-                }
-    
-                if (pattern.has("begin") && pattern.has("end")) {
-                    String begin = cleanRegexPattern(pattern.getString("begin"));
-                    String end = cleanRegexPattern(pattern.getString("end"));
-                    cp.pattern = patternCache.computeIfAbsent(begin, r -> {
-                        try {
-                            return Pattern.compile(r);
-                        } catch (PatternSyntaxException e) {
-                            log.warn("Invalid begin pattern: " + r, e);
-                            return null;
-                        }
-                    });
-                    cp.endPattern = patternCache.computeIfAbsent(end, r -> {
-                        try {
-                            return Pattern.compile(r);
-                        } catch (PatternSyntaxException e) {
-                            log.warn("Invalid end pattern: " + r, e);
-                            return null;
-                        }
-                    });
-                    cp.scope = pattern.optString("name", "");
-                    cp.isRange = true;
-                    cachedPatternList.add(cp);
-                }
-    
-                if (pattern.has("patterns")) {
-                    cp.nestedPatterns = pattern.getJSONArray("patterns");
-                    cachePatternsRecursive(cp.nestedPatterns);
-                }
 
-                if (pattern.has("useGroup")) {
-                    cp.useGroup = pattern.getBoolean("useGroup");
-                }
-            } catch (JSONException e) {
-                log.warn("Pattern parsing error at index " + i + ": " + e.getMessage());
-            }
-        }
+    public String prefilterReport() {
+        return tokenizer != null ? tokenizer.prefilterReport() : "No grammar loaded";
     }
-    
-    
-    public void parseLine(String line, CustomConsoleWindow console, TextSegment segment, int startOffset) {
+
+    // The original tokenizer: a full scan per rule, dropping hits that overlap an earlier rule's. Kept for compareTokenizers.
+    private void tokenizeLegacy(String line, CombinedTokenizer.TokenSink sink) {
         List<int[]> styledRanges = new ArrayList<>();
-        for (CachedPattern cp : cachedPatternList) {
-            if (cp.pattern == null) continue;
+        for (CompiledGrammar.LegacyRule cp : compiled.getLegacyRules()) {
 
             Matcher m = cp.pattern.matcher(line);
-            if (!cp.isRange) {
+            if (!cp.isRange()) {
                 while (m.find()) {
                     int start, end;
                     
@@ -215,16 +139,7 @@ public class TextMateGrammar {
                     if(isOverlapping(start, end, styledRanges)) continue;
                     styledRanges.add(new int[]{start,end});
 
-                    MatchResult match = new MatchResult(start, end - start, cp.scope, m.group());
-                    Style style = console.createStyleFromScope(cp.scope);
-
-                    if (style != null) {
-                        int absoluteStart = startOffset + match.start;
-                        console.getDoc().setCharacterAttributes(absoluteStart, match.length, style, true);
-                        for (int j = 0; j < match.length; j++) {
-                            segment.syntaxHighlights.put(absoluteStart + j, style);
-                        }
-                    }
+                    if (end > start && !sink.token(start, end - start, cp.scope)) return;
                 }
 
             } else {
@@ -238,21 +153,12 @@ public class TextMateGrammar {
                         int endEnd = beginEnd + endM.end();
                         if(isOverlapping(start, endEnd, styledRanges)) continue;
                         styledRanges.add(new int[]{start,endEnd});
-                        MatchResult match = new MatchResult(m.start(), endEnd - m.start(), cp.scope, line.substring(m.start(), endEnd));
-                        Style style = console.createStyleFromScope(cp.scope);
-
-                        if (style != null) {
-                            int absoluteStart = startOffset + match.start;
-                            console.getDoc().setCharacterAttributes(absoluteStart, match.length, style, true);
-                            for (int j = 0; j < match.length; j++) {
-                                segment.syntaxHighlights.put(absoluteStart + j, style);
-                            }
-                        }
+
+                        if (!sink.token(start, endEnd - start, cp.scope)) return;
                     }
                 }
             }
         }    
-        return;
     }
 
     private boolean isOverlapping(int start, int end, List<int[]> styledRanges) {
@@ -264,9 +170,106 @@ public class TextMateGrammar {
         return false;
     }
 
+    // Every scope name the loaded grammar can assign, so styles can be resolved before highlighting starts
+    public Set<String> getScopes() {
+        return compiled.getScopes();
+    }
+
+    // Runs the legacy and combined tokenizers over a recorded log and reports their speed and any lines they tokenize differently
+    public String compareTokenizers(File logFile, int maxLines) {
+        if (tokenizer == null) return "No grammar loaded";
+
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(logFile), StandardCharsets.UTF_8))) {
+            String line;
+            while (lines.size() < maxLines && (line = reader.readLine()) != null) {
+                lines.add(line + "\n");
+            }
+        } catch (IOException e) {
+            return "Could not read " + logFile.getAbsolutePath() + ": " + e.getMessage();
+        }
+        if (lines.isEmpty()) return logFile.getAbsolutePath() + " is empty";
+
+        List<String> legacyTokens = new ArrayList<>(lines.size());
+        List<String> combinedTokens = new ArrayList<>(lines.size());
+        // First pass warms up both paths and records their output
+        for (String line : lines) {
+            legacyTokens.add(describeTokens(line, false));
+            combinedTokens.add(describeTokens(line, true));
+        }
+
+        long[] legacyCount = new long[1];
+        long legacyStart = System.nanoTime();
+        for (String line : lines) {
+            tokenizeLegacy(line, (start, length, scope) -> { legacyCount[0]++; return true; });
+        }
+        long legacyNanos = System.nanoTime() - legacyStart;
+
+        long[] combinedCount = new long[1];
+        long combinedStart = System.nanoTime();
+        for (String line : lines) {
+            tokenizer.tokenize(line, (start, length, scope) -> { combinedCount[0]++; return true; });
+        }
+        long combinedNanos = System.nanoTime() - combinedStart;
+
+        long unfilteredStart = System.nanoTime();
+        for (String line : lines) {
+            tokenizer.tokenizeUnfiltered(line, (start, length, scope) -> true);
+        }
+        long unfilteredNanos = System.nanoTime() - unfilteredStart;
+
+        int differing = 0;
+        StringBuilder examples = new StringBuilder();
+        for (int i = 0; i < lines.size(); i++) {
+            if (legacyTokens.get(i).equals(combinedTokens.get(i))) continue;
+            if (++differing <= 5) {
+                examples.append("\nline ").append(i + 1).append(": ").append(lines.get(i).trim())
+                    .append("\n  legacy:   ").append(legacyTokens.get(i))
+                    .append("\n  combined: ").append(combinedTokens.get(i));
+            }
+        }
+
+        return "tokenizer comparison over " + lines.size() + " lines of " + logFile.getAbsolutePath()
+            + "\nlegacy:   " + String.format("%.1f", legacyNanos / 1_000_000.0) + " ms, " + legacyCount[0] + " tokens"
+            + "\ncombined: " + String.format("%.1f", combinedNanos / 1_000_000.0) + " ms, " + combinedCount[0] + " tokens"
+            + "\ncombined without literal prefilter: " + String.format("%.1f", unfilteredNanos / 1_000_000.0) + " ms"
+            + "\nspeedup: " + String.format("%.2f", combinedNanos == 0 ? 0 : (double) legacyNanos / combinedNanos) + "x"
+            + "\nlines tokenized differently: " + differing
+            + (differing > 0 ? "\nfirst differences (combined follows TextMate's leftmost-match rule, legacy gives earlier rules priority):" + examples : "");
+    }
+
+    private String describeTokens(String line, boolean combined) {
+        List<Object[]> tokens = new ArrayList<>();
+        CombinedTokenizer.TokenSink sink = (start, length, scope) -> {
+            tokens.add(new Object[] {start, length, scope});
+            return true;
+        };
+        if (combined) {
+            tokenizer.tokenize(line, sink);
+        } else {
+            tokenizeLegacy(line, sink);
+        }
+        tokens.sort((a, b) -> Integer.compare((int) a[0], (int) b[0]));
+
+        StringBuilder sb = new StringBuilder();
+        for (Object[] token : tokens) {
+            if (sb.length() > 0) sb.append(' ');
+            String scope = (String) token[2];
+            int start = (int) token[0];
+            sb.append(scope, 0, scope.indexOf(' ') > 0 ? scope.indexOf(' ') : scope.length())
+                .append('"').append(line, start, start + (int) token[1]).append('"');
+        }
+        return sb.toString();
+    }
+
     public StyleInfo getStyleForScope(String scope) {
         return scopeToStyle.get(scope);
     }
+
+    // Theme style for a grammar scope after the same fallbacks the window always applied, precomputed per scope
+    public StyleInfo getResolvedStyle(String scope) {
+        return compiled.getResolvedStyle(scope);
+    }
     
     public static class MatchResult {
         public final int start;
@@ -303,120 +306,7 @@ public class TextMateGrammar {
         return null;
     }
     
-    private String cleanRegexPattern(String pattern) {
-        if (pattern == null) return "";
-        
-        String cleaned = pattern;
-        cleaned = cleaned.replaceAll("\\\\p(?![\\w{])", "\\\\p{L}");
-        cleaned = cleaned.replaceAll("\\\\p\\{\\}", "\\\\p{L}");
-        
-        return cleaned;
-    }
-    
     public Map<String, StyleInfo> getScopeToStyle() {
         return scopeToStyle;
     }
-
-    public class RegexTests {
-        public List<MatchResult> parseLine(String line, CustomConsoleWindow console, TextSegment segment, int startOffset) {
-            List<MatchResult> allResults = new ArrayList<>();
-            if (grammar == null) return allResults;
-        
-            try {
-                JSONArray patterns = grammar.getJSONArray("patterns");
-                parsePatternsWithTiming(patterns, line, 0, allResults, console, segment, startOffset);
-                return allResults;
-            } catch (Exception e) {
-                log.error("Error parsing line: " + e.getMessage(), e);
-            }
-        
-            return allResults;
-        }
-        
-        private void parsePatternsWithTiming(JSONArray patterns, String line, int startPos, List<MatchResult> results, CustomConsoleWindow console, TextSegment segment, int startOffset) {
-            for (int i = 0; i < patterns.length(); i++) {
-                try {
-                    JSONObject pattern = patterns.getJSONObject(i);
-        
-                    if (pattern.has("match")) {
-                        String rawRegex = pattern.getString("match");
-                        String name = pattern.optString("name", "");
-                        String cleanedRegex = cleanRegexPattern(rawRegex);
-                        Pattern p = patternCache.get(cleanedRegex);
-        
-                        if (p != null) {
-                            long startTime = System.nanoTime();
-                            Matcher m = p.matcher(line);
-                            while (m.find()) {
-                                int start = m.start();
-                                int end = m.end();
-                                MatchResult match = new MatchResult(start, end - start, name, m.group());
-                                Style style = console.createStyleFromScope(match.scope);
-                                if (style != null) {
-                                    int absoluteStart = startOffset + match.start;
-                                    console.getDoc().setCharacterAttributes(absoluteStart, match.length, style, true);
-                                    for (int j = 0; j < match.length; j++) {
-                                        segment.syntaxHighlights.put(absoluteStart + j, style);
-                                    }
-                                }
-                            }
-                            long duration = System.nanoTime() - startTime;
-                            if (duration > 10_000_000) {
-                                log.warn("Slow regex: " + rawRegex + " (scope: " + name + ") took " + (duration / 1_000_000) + "ms");
-                            }
-                        }
-                    }
-        
-                    if (pattern.has("begin") && pattern.has("end")) {
-                        String beginRegex = pattern.getString("begin");
-                        String endRegex = pattern.getString("end");
-                        String name = pattern.optString("name", "");
-        
-                        String cleanedBegin = cleanRegexPattern(beginRegex);
-                        String cleanedEnd = cleanRegexPattern(endRegex);
-        
-                        Pattern beginPattern = patternCache.get(cleanedBegin);
-                        Pattern endPattern = patternCache.get(cleanedEnd);
-        
-                        if (beginPattern != null && endPattern != null) {
-                            long startTime = System.nanoTime();
-                            Matcher beginMatcher = beginPattern.matcher(line);
-                            while (beginMatcher.find()) {
-                                int beginStart = beginMatcher.start();
-                                int beginEnd = beginMatcher.end();
-        
-                                String remaining = line.substring(beginEnd);
-                                Matcher endMatcher = endPattern.matcher(remaining);
-                                if (endMatcher.find()) {
-                                    // int endStart = beginEnd + endMatcher.start();
-                                    int endEnd = beginEnd + endMatcher.end();
-                                    MatchResult match = new MatchResult(beginStart, endEnd - beginStart, name, line.substring(beginStart, endEnd));
-        
-                                    Style style = console.createStyleFromScope(match.scope);
-                                    if (style != null) {
-                                        int absoluteStart = startOffset + match.start;
-                                        console.getDoc().setCharacterAttributes(absoluteStart, match.length, style, true);
-                                        for (int j = 0; j < match.length; j++) {
-                                            segment.syntaxHighlights.put(absoluteStart + j, style);
-                                        }
-                                    }
-                                }
-                            }
-                            long duration = System.nanoTime() - startTime;
-                            if (duration > 10_000_000) {
-                                log.warn("Slow begin/end regex: " + beginRegex + " / " + endRegex + " (scope: " + name + ") took " + (duration / 1_000_000) + "ms");
-                            }
-                        }
-                    }
-        
-                    if (pattern.has("patterns")) {
-                        parsePatternsWithTiming(pattern.getJSONArray("patterns"), line, startPos, results, console, segment, startOffset);
-                    }
-        
-                } catch (JSONException e) {
-                    log.warn("Error parsing pattern at index " + i + ": " + e.getMessage());
-                }
-            }
-        }
-    }
 }
\ No newline at end of file
@@ -0,0 +1,165 @@
+package data.scripts;
+
+import java.util.Arrays;
+
+// Case-folded trigram postings for the row bodies of one LogEventStore chunk, built as rows are appended and
+// dropped with the chunk when retention trims it. A literal can only occur in a body that holds every one of its
+// trigrams, so intersecting those postings narrows a search to a handful of rows to verify.
+// Postings start as sorted lists of row indexes and turn into a fixed bitmap over the chunk once they pass
+// LIST_LIMIT rows, which bounds any one trigram at 128 bytes. Bodies longer than MAX_INDEXED_CHARS (usually long
+// stack traces) aren't indexed and are always returned as candidates.
+// Written by the drain thread under the store's lock; see LogEventStore.bodyCandidates for reading it.
+final class TrigramIndex {
+    static final int MAX_INDEXED_CHARS = 4096;
+    private static final int LIST_LIMIT = 64;
+    private static final int WORDS = LogEventStore.CHUNK_ROWS / 64;
+    // Set on every stored key so a packed trigram of three '\0's can't look like an empty slot
+    private static final long USED = 1L << 48;
+    private static final int OBJECT_HEADER = 16;
+
+    private long[] keys = new long[1024];
+    private char[][] lists = new char[1024][];
+    private byte[] listSizes = new byte[1024];
+    private long[][] bitmaps = new long[1024][];
+    private int trigrams = 0;
+    private final long[] unindexed = new long[WORDS];
+    private int unindexedRows = 0;
+    private long postingBytes = 0;
+
+    // The folding String.equalsIgnoreCase uses; search applies it to queries the same way
+    static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    void addRow(int row, char[] text, int start, int length) {
+        if (length > MAX_INDEXED_CHARS) {
+            unindexed[row >>> 6] |= 1L << row;
+            unindexedRows++;
+            return;
+        }
+        if (length < 3) return;
+        long key = ((long) fold(text[start]) << 16) | fold(text[start + 1]);
+        for (int i = start + 2, end = start + length; i < end; i++) {
+            key = ((key << 16) | fold(text[i])) & 0xFFFF_FFFF_FFFFL;
+            add(key | USED, row);
+        }
+    }
+
+    private void add(long key, int row) {
+        int slot = find(key);
+        if (keys[slot] == 0) {
+            keys[slot] = key;
+            lists[slot] = new char[4];
+            postingBytes += OBJECT_HEADER + 8;
+            if (++trigrams * 2 > keys.length) {
+                grow();
+                slot = find(key);
+            }
+        }
+
+        long[] bitmap = bitmaps[slot];
+        if (bitmap != null) {
+            bitmap[row >>> 6] |= 1L << row;
+            return;
+        }
+        char[] list = lists[slot];
+        int size = listSizes[slot] & 0xFF;
+        // Rows arrive in order, so a repeat within a body is always the last entry
+        if (size > 0 && list[size - 1] == row) return;
+        if (size == LIST_LIMIT) {
+            bitmap = new long[WORDS];
+            for (int i = 0; i < size; i++) {
+                bitmap[list[i] >>> 6] |= 1L << list[i];
+            }
+            bitmap[row >>> 6] |= 1L << row;
+            bitmaps[slot] = bitmap;
+            lists[slot] = null;
+            postingBytes += WORDS * 8 - list.length * 2;
+            return;
+        }
+        if (size == list.length) {
+            list = Arrays.copyOf(list, size * 2);
+            lists[slot] = list;
+            postingBytes += size * 2;
+        }
+        list[size] = (char) row;
+        listSizes[slot] = (byte) (size + 1);
+    }
+
+    private int find(long key) {
+        int mask = keys.length - 1;
+        int slot = (int) (key * 0x9E3779B97F4A7C15L >>> 40) & mask;
+        while (keys[slot] != 0 && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        char[][] oldLists = lists;
+        byte[] oldSizes = listSizes;
+        long[][] oldBitmaps = bitmaps;
+        int capacity = oldKeys.length * 2;
+        keys = new long[capacity];
+        lists = new char[capacity][];
+        listSizes = new byte[capacity];
+        bitmaps = new long[capacity][];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == 0) continue;
+            int slot = find(oldKeys[i]);
+            keys[slot] = oldKeys[i];
+            lists[slot] = oldLists[i];
+            listSizes[slot] = oldSizes[i];
+            bitmaps[slot] = oldBitmaps[i];
+        }
+    }
+
+    // ORs into out the rows whose body may contain literal: those holding all of its trigrams, plus the rows that
+    // weren't indexed. literal must already be folded and at least three characters long.
+    void addCandidates(char[] literal, long[] out) {
+        long[] rows = new long[WORDS];
+        Arrays.fill(rows, -1L);
+        long[] posting = new long[WORDS];
+        boolean any = true;
+        long key = ((long) literal[0] << 16) | literal[1];
+        for (int i = 2; i < literal.length && any; i++) {
+            key = ((key << 16) | literal[i]) & 0xFFFF_FFFF_FFFFL;
+            int slot = find(key | USED);
+            if (keys[slot] == 0) {
+                any = false;
+                break;
+            }
+            long[] bitmap = bitmaps[slot];
+            if (bitmap == null) {
+                Arrays.fill(posting, 0);
+                char[] list = lists[slot];
+                for (int j = 0, n = listSizes[slot] & 0xFF; j < n; j++) {
+                    posting[list[j] >>> 6] |= 1L << list[j];
+                }
+                bitmap = posting;
+            }
+            any = false;
+            for (int w = 0; w < WORDS; w++) {
+                rows[w] &= bitmap[w];
+                any |= rows[w] != 0;
+            }
+        }
+        for (int w = 0; w < WORDS; w++) {
+            out[w] |= (any ? rows[w] : 0) | unindexed[w];
+        }
+    }
+
+    int getTrigramCount() {
+        return trigrams;
+    }
+
+    int getUnindexedRows() {
+        return unindexedRows;
+    }
+
+    long memoryBytes() {
+        // The slot arrays plus every posting list or bitmap
+        return (long) keys.length * (8 + 4 + 1 + 4) + 4 * OBJECT_HEADER + postingBytes;
+    }
+}
@@ -69,6 +69,20 @@ public class CommandEnabledCustomConsoleWindow extends CustomConsoleWindow {
                         }
                         inputField.setText("");
                         return;
+                    case "consolestats":
+                        log.info("\n" + getDiagnostics().report());
+                        inputField.setText("");
+                        return;
+                    case "tokenizerbench":
+                        // Reads the game's own log, so keep it off the EDT
+                        new Thread(() -> log.info("\n" + getGrammar().compareTokenizers(new java.io.File("starsector.log"), 100000)),
+                            "ExternalLogConsole-TokenizerBench").start();
+                        inputField.setText("");
+                        return;
+                    case "grammarprofile":
+                        log.info("\n" + getGrammar().profileReport());
+                        inputField.setText("");
+                        return;
                     case "killall":
                         if (!Global.getSettings().isInCampaignState()) {
                             new KillAll().runCommand_();